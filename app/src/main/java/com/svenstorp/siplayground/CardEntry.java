@@ -0,0 +1,100 @@
+package com.svenstorp.siplayground;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+public class CardEntry implements Parcelable {
+    public static final Parcelable.Creator CREATOR = new Parcelable.Creator() {
+        public CardEntry createFromParcel(Parcel in) {
+            return new CardEntry(in);
+        }
+
+        public CardEntry[] newArray(int size) {
+            return new CardEntry[size];
+        }
+    };
+
+    public long cardId;
+    public long startTime;
+    public long finishTime;
+    public long checkTime;
+    // Punches stored column wise, only the first punchCount entries are valid
+    private int punchCount;
+    private int[] punchCodes;
+    private long[] punchTimes;
+
+    public CardEntry() {
+        this(0);
+    }
+
+    public CardEntry(int punchCapacity) {
+        punchCodes = new int[punchCapacity];
+        punchTimes = new long[punchCapacity];
+    }
+
+    public CardEntry(Parcel in) {
+        this.cardId = in.readLong();
+        this.startTime = in.readLong();
+        this.finishTime = in.readLong();
+        this.checkTime = in.readLong();
+        this.punchCount = in.readInt();
+        this.punchCodes = new int[punchCount];
+        this.punchTimes = new long[punchCount];
+        for (int i=0; i<punchCount; i++) {
+            this.punchCodes[i] = in.readInt();
+            this.punchTimes[i] = in.readLong();
+        }
+    }
+
+    public int punchCount() {
+        return punchCount;
+    }
+
+    public int punchCode(int i) {
+        return punchCodes[i];
+    }
+
+    public long punchTime(int i) {
+        return punchTimes[i];
+    }
+
+    void setPunchTime(int i, long time) {
+        punchTimes[i] = time;
+    }
+
+    void ensurePunchCapacity(int capacity) {
+        if (capacity > punchCodes.length) {
+            punchCodes = Arrays.copyOf(punchCodes, capacity);
+            punchTimes = Arrays.copyOf(punchTimes, capacity);
+        }
+    }
+
+    void addPunch(int code, long time) {
+        if (punchCount == punchCodes.length) {
+            ensurePunchCapacity(Math.max(8, punchCount * 2));
+        }
+        punchCodes[punchCount] = code;
+        punchTimes[punchCount] = time;
+        punchCount++;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(this.cardId);
+        dest.writeLong(this.startTime);
+        dest.writeLong(this.finishTime);
+        dest.writeLong(this.checkTime);
+        dest.writeInt(this.punchCount);
+        for (int i=0; i<this.punchCount; i++) {
+            dest.writeInt(this.punchCodes[i]);
+            dest.writeLong(this.punchTimes[i]);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.svenstorp.siplayground;
+
+/**
+ * Memory layout of a card series, as far as the readout needs it: which
+ * blocks follow block 0 in the data given to CardParser, where the punch
+ * count is in block 0 and where the punches start. From the punch count the
+ * reader can work out the blocks that actually hold punches.
+ *
+ * Offsets are into the data as assembled for CardParser, block 0 followed
+ * by the blocks in read order.
+ */
+class CardLayout {
+    static final int BLOCK_SIZE = 128;
+    private static final int PUNCH_SIZE = 4;
+
+    // Read in one go with 0xb1, no blocks
+    static final CardLayout SI5 = new CardLayout("SI-Card 5", new byte[]{}, -1, -1, 36);
+    static final CardLayout SI6 = new CardLayout("SI-Card 6", new byte[]{6, 7, 2, 3, 4, 5}, 18, 128, 64);
+    static final CardLayout SI6_STAR = new CardLayout("SI-Card 6*", new byte[]{6, 7, 2, 3, 4, 5}, 18, 128, 192);
+    static final CardLayout SI8 = new CardLayout("SI-Card 8", new byte[]{1}, 22, 136, 30);
+    static final CardLayout SI9 = new CardLayout("SI-Card 9", new byte[]{1}, 22, 56, 50);
+    static final CardLayout SI10 = new CardLayout("SI-Card 10", new byte[]{4, 5, 6, 7}, 22, 128, 128);
+    static final CardLayout SI11 = new CardLayout("SI-Card 11", new byte[]{4, 5, 6, 7}, 22, 128, 128);
+    static final CardLayout SIAC = new CardLayout("SIAC", new byte[]{4, 5, 6, 7}, 22, 128, 128);
+    static final CardLayout PCARD = new CardLayout("pCard", new byte[]{1}, 22, 176, 20);
+    // Punches are not decoded by CardParser, block 1 is always read so the data is kept
+    static final CardLayout TCARD = new CardLayout("tCard", new byte[]{1}, -1, -1, 0);
+    static final CardLayout UNKNOWN = new CardLayout("Unknown", new byte[]{1}, -1, -1, 0);
+
+    final String name;
+    // Blocks following block 0, in the order CardParser expects them
+    final byte[] blocks;
+    final int countOffset;
+    final int punchOffset;
+    final int maxPunches;
+
+    private CardLayout(String name, byte[] blocks, int countOffset, int punchOffset, int maxPunches)
+    {
+        this.name = name;
+        this.blocks = blocks;
+        this.countOffset = countOffset;
+        this.punchOffset = punchOffset;
+        this.maxPunches = maxPunches;
+    }
+
+    /**
+     * Layout of an SI-Card 6 or later, from its block 0.
+     *
+     * @param format card inserted command, 0xe6 or 0xe8, SI-Card 5 is not block based
+     * @return the layout, UNKNOWN for an unknown series
+     */
+    static CardLayout fromBlock0(byte format, byte[] block0)
+    {
+        if (format == (byte)0xe6) {
+            // Only SI-Card 6*, with three times the punch memory, can hold more than 64 punches
+            return ((block0[SI6.countOffset] & 0xff) > SI6.maxPunches) ? SI6_STAR : SI6;
+        }
+
+        int series = block0[24] & 0x0f;
+        long cardNo = ((block0[25] & 0xff) << 16) | ((block0[26] & 0xff) << 8) | (block0[27] & 0xff);
+        switch (series) {
+            case 1:
+                return SI9;
+            case 2:
+                return SI8;
+            case 4:
+                return PCARD;
+            case 6:
+                return TCARD;
+            case 15:
+                // Same memory layout, told apart by card number range
+                if (cardNo >= 7000000 && cardNo <= 7999999) {
+                    return SI10;
+                }
+                if (cardNo >= 9000000 && cardNo <= 9999999) {
+                    return SI11;
+                }
+                return SIAC;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * @return punch count recorded in block 0, -1 if the layout has none
+     */
+    int punchCount(byte[] block0)
+    {
+        if (countOffset < 0) {
+            return -1;
+        }
+        return Math.min(block0[countOffset] & 0xff, maxPunches);
+    }
+
+    /**
+     * @param punchCount punch count from block 0, -1 if unknown
+     * @return number of blocks, from the start of blocks, that hold the
+     * punches. All of them if the punch count is unknown.
+     */
+    int blocksNeeded(int punchCount)
+    {
+        if (punchCount < 0 || punchOffset < 0) {
+            return blocks.length;
+        }
+        if (punchCount == 0) {
+            return 0;
+        }
+
+        int lastByte = punchOffset + punchCount * PUNCH_SIZE - 1;
+        return Math.min(blocks.length, lastByte / BLOCK_SIZE);
+    }
+}
@@ -0,0 +1,299 @@
+package com.svenstorp.siplayground;
+
+import java.util.Calendar;
+
+import static java.lang.Math.min;
+
+/**
+ * Parses card memory read from SI-Card 5, 6, 8, 9, 10, 11, SIAC and pCard
+ * into a CardEntry, with times relative to the zero time.
+ */
+class CardParser {
+    private final int HALF_DAY = 12*3600000;
+    private static final int TRANSMIT_RECORD_SIZE = 19;
+    private long zeroTimeWeekDay;
+    private long zeroTimeBase;
+
+    CardParser(Calendar zeroTime) {
+        this.zeroTimeBase = zeroTime.get(Calendar.HOUR_OF_DAY)*3600000 + zeroTime.get(Calendar.MINUTE)*60000 + zeroTime.get(Calendar.SECOND)*1000;
+        this.zeroTimeWeekDay = zeroTime.get(Calendar.DAY_OF_WEEK) % 7;
+    }
+
+    /**
+     * Parse card data by the card inserted command it was read after,
+     * 0xe5 (SI-Card 5), 0xe6 (SI-Card 6) or 0xe8 (SI-Card 8 and later).
+     */
+    boolean parse(byte format, byte[] data, CardEntry entry)
+    {
+        switch (format) {
+            case (byte)0xe5:
+                return card5EntryParse(data, entry);
+            case (byte)0xe6:
+                return card6EntryParse(data, entry);
+            case (byte)0xe8:
+                return card9EntryParse(data, entry);
+            default:
+                return false;
+        }
+    }
+
+    boolean card5EntryParse(byte[] data, CardEntry entry)
+    {
+        boolean ret = false;
+        int offset = 0;
+        if (data.length == 136) {
+            // Start at data part
+            offset += 5;
+            // Get cardId
+            if (data[offset+6] == 0x00 || data[offset+6] == 0x01) {
+                entry.cardId = (byteToUnsignedInt(data[offset+4]) << 8) + byteToUnsignedInt(data[offset+5]);
+            }
+            else if (byteToUnsignedInt(data[offset+6]) < 5) {
+                entry.cardId = byteToUnsignedInt(data[offset+6])*100000 + (byteToUnsignedInt(data[offset+4]) << 8) + byteToUnsignedInt(data[offset+5]);
+            }
+            else {
+                entry.cardId = (byteToUnsignedInt(data[offset+6]) << 16) + (byteToUnsignedInt(data[offset+4]) << 8) + byteToUnsignedInt(data[offset+5]);
+            }
+            entry.startTime = (byteToUnsignedInt(data[offset+19]) << 8) + byteToUnsignedInt(data[offset+20]);
+            entry.finishTime = (byteToUnsignedInt(data[offset+21]) << 8) + byteToUnsignedInt(data[offset+22]);
+            entry.checkTime = (byteToUnsignedInt(data[offset+25]) << 8) + byteToUnsignedInt(data[offset+26]);
+            int punchCount = byteToUnsignedInt(data[offset+23]) - 1;
+            entry.ensurePunchCapacity(punchCount);
+            for (int i=0; i<punchCount && i<30; i++) {
+                int baseoffset = offset + 32 + (i/5)*16 + 1 + 3*(i%5);
+                entry.addPunch(byteToUnsignedInt(data[baseoffset]),
+                               (byteToUnsignedInt(data[baseoffset+1]) << 8) + byteToUnsignedInt(data[baseoffset+2]));
+            }
+            for (int i=30; i<punchCount; i++) {
+                int baseoffset = offset + 32 + (i-30)*16;
+                entry.addPunch(data[baseoffset], 0);
+            }
+
+            card5TimeAdjust(entry);
+
+            ret = true;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Parse card id and start, finish and check times from block 0 of an
+     * SI-Card 6 or later, leaving the punches alone.
+     */
+    boolean parseHeader(byte format, byte[] block0, CardEntry entry)
+    {
+        switch (format) {
+            case (byte)0xe6:
+                entry.cardId = (byteToUnsignedInt(block0[10]) << 24) | (byteToUnsignedInt(block0[11]) << 16) | (byteToUnsignedInt(block0[12]) << 8) | byteToUnsignedInt(block0[13]);
+                entry.startTime = parsePunchTime(block0, 24);
+                entry.finishTime = parsePunchTime(block0, 20);
+                entry.checkTime = parsePunchTime(block0, 28);
+                return true;
+            case (byte)0xe8:
+                entry.cardId = (byteToUnsignedInt(block0[25]) << 16) | (byteToUnsignedInt(block0[26]) << 8) | byteToUnsignedInt(block0[27]);
+                entry.startTime = parsePunchTime(block0, 12);
+                entry.finishTime = parsePunchTime(block0, 16);
+                entry.checkTime = parsePunchTime(block0, 8);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Parse punches from to to (exclusive), punch i being at punchOffset + 4*i in data.
+     */
+    void parsePunches(byte[] data, int punchOffset, int from, int to, CardEntry entry)
+    {
+        entry.ensurePunchCapacity(entry.punchCount() + to - from);
+        for (int i=from; i<to; i++) {
+            parsePunch(data, punchOffset+4*i, entry);
+        }
+    }
+
+    boolean card6EntryParse(byte[] data, CardEntry entry)
+    {
+        parseHeader((byte)0xe6, data, entry);
+
+        int punches = min(byteToUnsignedInt(data[18]), 192);
+        entry.ensurePunchCapacity(punches);
+        for (int i=0; i<punches; i++) {
+            parsePunch(data, 128+4*i, entry);
+        }
+        return true;
+    }
+
+    boolean card9EntryParse(byte[] data, CardEntry entry)
+    {
+        parseHeader((byte)0xe8, data, entry);
+        int series = data[24] & 0x0f;
+
+        if (series == 1) {
+            // SI card 9
+            int punches = min(byteToUnsignedInt(data[22]), 50);
+            entry.ensurePunchCapacity(punches);
+            for (int i=0; i<punches; i++) {
+                parsePunch(data, 14*4+4*i, entry);
+            }
+        }
+        else if(series == 2) {
+            // SI card 8
+            int punches = min(byteToUnsignedInt(data[22]), 30);
+            entry.ensurePunchCapacity(punches);
+            for (int i=0; i<punches; i++) {
+                parsePunch(data, 34*4+4*i, entry);
+            }
+        }
+        else if(series == 4) {
+            // pCard
+            int punches = min(byteToUnsignedInt(data[22]), 20);
+            entry.ensurePunchCapacity(punches);
+            for (int i=0; i<punches; i++) {
+                parsePunch(data, 44*4+4*i, entry);
+            }
+        }
+        else if(series == 15) {
+            // SI card 10, 11, siac
+            int punches = min(byteToUnsignedInt(data[22]), 128);
+            entry.ensurePunchCapacity(punches);
+            for (int i=0; i<punches; i++) {
+                parsePunch(data, 128+4*i, entry);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Decode a transmit record (0xd3) sent by a station in autosend mode:
+     * STX, 0xd3, len, CN1, CN0, SI3..SI0, TD, TH, TL, TSS, MEM2..MEM0, crc, ETX.
+     * TD, TH and TL are coded like the time of a punch on a card.
+     *
+     * @return the punch, or null if the frame is too short
+     */
+    SIPunch parseTransmitRecord(long serialNo, byte[] frame, int length)
+    {
+        if (length < TRANSMIT_RECORD_SIZE) {
+            return null;
+        }
+
+        int code = (byteToUnsignedInt(frame[3]) << 8) + byteToUnsignedInt(frame[4]);
+        long cardId = (byteToUnsignedInt(frame[6]) << 16) + (byteToUnsignedInt(frame[7]) << 8) + byteToUnsignedInt(frame[8]);
+        // Sub seconds in 1/256 s
+        long time = punchTime(frame[9], frame[10], frame[11]) + (byteToUnsignedInt(frame[12]) * 1000) / 256;
+        int address = (byteToUnsignedInt(frame[13]) << 16) + (byteToUnsignedInt(frame[14]) << 8) + byteToUnsignedInt(frame[15]);
+        return new SIPunch(serialNo, code, cardId, time, address);
+    }
+
+    /**
+     * Compare the parts of block 0 that change when a card is punched or
+     * cleared: card number, punch count and the start, finish and check
+     * punches. Equal fingerprints from two reads of the same card mean no
+     * punches were added in between. Only SI-Card 6 and later have a block 0.
+     */
+    static boolean sameFingerprint(byte format, byte[] a, byte[] b)
+    {
+        switch (format) {
+            case (byte)0xe6:
+                return equalRange(a, b, 10, 4) && equalRange(a, b, 18, 1) && equalRange(a, b, 20, 12);
+            case (byte)0xe8:
+                return equalRange(a, b, 24, 4) && equalRange(a, b, 22, 1) && equalRange(a, b, 8, 12);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean equalRange(byte[] a, byte[] b, int offset, int length)
+    {
+        for (int i=offset; i<offset+length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void card5TimeAdjust(CardEntry entry)
+    {
+        long pmOffset = (zeroTimeBase >= HALF_DAY) ? HALF_DAY : 0;
+
+        if (entry.startTime != 0) {
+            entry.startTime = entry.startTime * 1000 + pmOffset;
+            if (entry.startTime < zeroTimeBase) {
+                entry.startTime += HALF_DAY;
+            }
+            entry.startTime -= zeroTimeBase;
+        }
+        if (entry.checkTime != 0) {
+            entry.checkTime = entry.checkTime * 1000 + pmOffset;
+            if (entry.checkTime < zeroTimeBase) {
+                entry.checkTime += HALF_DAY;
+            }
+            entry.checkTime -= zeroTimeBase;
+        }
+        long currentBase = pmOffset;
+        long lastTime = zeroTimeBase;
+        for (int i=0; i<entry.punchCount(); i++) {
+            long tmpTime = entry.punchTime(i) * 1000 + currentBase;
+            //if (tmpTime < lastTime) {
+            //    currentBase += HALF_DAY;
+            //}
+            //tmpTime = entry.punchTime(i) * 1000 + currentBase;
+            entry.setPunchTime(i, tmpTime - zeroTimeBase);
+            lastTime = tmpTime;
+        }
+        long tmpTime = entry.finishTime * 1000 + currentBase;
+        if (tmpTime < lastTime) {
+            currentBase += HALF_DAY;
+        }
+        tmpTime = entry.finishTime * 1000 + currentBase;
+        entry.finishTime = tmpTime - zeroTimeBase;
+    }
+
+    private boolean parsePunch(byte[] data, int offset, CardEntry entry)
+    {
+        if (isEmptyPunch(data, offset)) {
+            return false;
+        }
+        entry.addPunch(byteToUnsignedInt(data[offset+1]) + 256*((byteToUnsignedInt(data[offset])>>6) & 0x03), punchTime(data, offset));
+        return true;
+    }
+
+    private long parsePunchTime(byte[] data, int offset)
+    {
+        return isEmptyPunch(data, offset) ? 0 : punchTime(data, offset);
+    }
+
+    private static boolean isEmptyPunch(byte[] data, int offset)
+    {
+        return data[offset] == (byte)0xee && data[offset+1] == (byte)0xee && data[offset+2] == (byte)0xee && data[offset+3] == (byte)0xee;
+    }
+
+    private long punchTime(byte[] data, int offset)
+    {
+        return punchTime(data[offset], data[offset+2], data[offset+3]);
+    }
+
+    private long punchTime(byte td, byte th, byte tl)
+    {
+        long basetime = ((byteToUnsignedInt(th) << 8) | byteToUnsignedInt(tl)) * 1000;
+        if ((td & 0x01) == 0x01) {
+            basetime += HALF_DAY;
+        }
+        int dayOfWeek = (td >> 1) & 0x07;
+        if (dayOfWeek < zeroTimeWeekDay) {
+            dayOfWeek += 7;
+        }
+        dayOfWeek -= zeroTimeWeekDay;
+        basetime += dayOfWeek * 24 * 3600 * 1000;
+        basetime -= zeroTimeBase;
+
+        return basetime;
+    }
+
+    private static int byteToUnsignedInt(byte in)
+    {
+        return in & 0xff;
+    }
+}
@@ -1,598 +1,615 @@
 package com.svenstorp.siplayground;
 
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
-import android.os.AsyncTask;
-import android.os.Parcel;
-import android.os.Parcelable;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
 
 import com.felhr.usbserial.UsbSerialDevice;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.HashMap;
-import java.util.Map;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import static java.lang.Math.min;
-
-public class CardReader extends AsyncTask<String, String, String> {
+/**
+ * Reads cards from one SI station on its own thread. Started by
+ * CardReaderManager, one instance per connected USB device.
+ */
+public class CardReader extends Thread {
     public static final String EVENT_IDENTIFIER = "CardReader-Event";
-    public static class CardEntry implements Parcelable {
-        public static class Punch implements Parcelable {
-            public static final Parcelable.Creator CREATOR = new Parcelable.Creator() {
-                public Punch createFromParcel(Parcel in) {
-                    return new Punch(in);
-                }
-
-                public Punch[] newArray(int size) {
-                    return new Punch[size];
-                }
-            };
-            public int code;
-            public long time;
-
-            public Punch()
-            {
-            }
-
-            public Punch(Parcel in) {
-                this.code = in.readInt();
-                this.time = in.readLong();
-            }
-
-            @Override
-            public int describeContents() {
-                return 0;
-            }
-
-            @Override
-            public void writeToParcel(Parcel dest, int flags) {
-                dest.writeInt(this.code);
-                dest.writeLong(this.time);
-            }
-        }
-
-        public static final Parcelable.Creator CREATOR = new Parcelable.Creator() {
-            public CardEntry createFromParcel(Parcel in) {
-                return new CardEntry(in);
-            }
-
-            public CardEntry[] newArray(int size) {
-                return new CardEntry[size];
-            }
-        };
-
-        public long cardId;
-        public long startTime;
-        public long finishTime;
-        public long checkTime;
-        ArrayList<Punch> punches;
-
-        public CardEntry() {
-            punches = new ArrayList<Punch>();
-        }
-
-        public CardEntry(Parcel in) {
-            this.cardId = in.readInt();
-            this.startTime = in.readInt();
-            this.finishTime = in.readInt();
-            this.checkTime = in.readInt();
-            this.punches = in.readArrayList(Punch.class.getClassLoader());
-        }
-
-        @Override
-        public int describeContents() {
-            return 0;
-        }
-
-        @Override
-        public void writeToParcel(Parcel dest, int flags) {
-            dest.writeLong(this.cardId);
-            dest.writeLong(this.startTime);
-            dest.writeLong(this.finishTime);
-            dest.writeLong(this.checkTime);
-            dest.writeList(this.punches);
-        }
-    }
     enum Event {
         DeviceDetected,
         ReadStarted,
+        ReadHeader,
+        ReadPunches,
         ReadCanceled,
-        Readout
-    }
-    enum TaskState {
-        Probe,
-        WaitPerm,
-        ProbeSI,
-        ReadingCard,
-        Quit
+        Readout,
+        BackupProgress,
+        BackupDone,
+        DeviceLost
     }
 
-    private final int HALF_DAY = 12*3600000;
-    private final String TAG = SIProtocol.class.getSimpleName();
+    // Receive on the USB read thread and block on frame queues instead of polling the port,
+    // needed for the card requests, which are matched to their replies on that thread
+    private static final boolean ASYNC_RECEIVE = true;
+    private static final int INSERT_POLL_TIMEOUT = 500;
+    // Waits for a card are short, so work queued on the scheduler starts within one wait
+    private static final int INSERT_WAIT_TIMEOUT = 250;
+    private static final int BLOCK_SIZE = 128;
+    private static final int BLOCK_TIMEOUT = 5000;
+    // STX, cmd, len, CN1, CN0, then 128 bytes of data
+    private static final int CARD5_REPLY_SIZE = BLOCK_SIZE + 5 + 3;
+    // Min time in ms between BackupProgress events
+    private static final int BACKUP_PROGRESS_INTERVAL = 500;
+    private final String TAG = CardReader.class.getSimpleName();
     private Context context;
-    private long zeroTimeWeekDay;
-    private long zeroTimeBase;
+    private CardParser parser;
     private UsbManager manager;
-    UsbDevice device;
-    private TaskState taskState;
-    private SIReader siReader;
-
-    private static class UsbBroadcastReceiver extends BroadcastReceiver {
-        // logging tag
-        private final String TAG = UsbBroadcastReceiver.class.getSimpleName();
-        // usb permission tag name
-        public static final String USB_PERMISSION ="com.svenstorp.siplayground.USB_PERMISSION";
-        private CardReader parent;
-
-        public UsbBroadcastReceiver(CardReader parent) {
-            this.parent = parent;
+    private UsbDevice device;
+    private StationProfiles profiles;
+    private CardReaderManager owner;
+    private volatile SIReader siReader;
+    private volatile SIMetrics metrics;
+    private long serialNo;
+    private long readStartTime;
+    private long readStartBytes;
+    private volatile boolean running = true;
+    private int pipelineDepth = 1;
+    private boolean progressive = false;
+    private boolean highSpeed = false;
+    private SIPunchStream punchStream;
+    // Background work on the link, run between waits for a card
+    private final SICommandScheduler scheduler = new SICommandScheduler();
+
+    /**
+     * Backup download driven one reply at a time, with a single request in
+     * flight so a readout queued meanwhile waits for at most one frame.
+     */
+    private class BackupTask implements SICommandScheduler.Task {
+        private final File file;
+        private SIBackupDownload download;
+        private long lastEmit = 0;
+
+        BackupTask(File file)
+        {
+            this.file = file;
         }
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (USB_PERMISSION.equals(action)) {
-                if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                    Log.d(TAG, "Permission to connect to device granted");
-                    parent.taskState = TaskState.ProbeSI;
+        public boolean step()
+        {
+            try {
+                if (download == null) {
+                    return this.begin();
                 }
-                else {
-                    Log.d(TAG, "Permission to connect to device denied");
+                if (download.step()) {
+                    return true;
                 }
             }
+            catch (IOException e) {
+                Log.e(TAG, "Backup download failed: " + e.getMessage());
+            }
+            this.close();
+            emitBackupDone(download != null && download.isComplete(),
+                    (download != null) ? download.getRecordCount() : 0, (download != null) ? download.getRecordsPerSecond() : 0);
+            return false;
         }
-    }
 
-    CardReader(Context context, Calendar zeroTime) {
-        this.context = context;
-        this.manager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
-        this.taskState = TaskState.Probe;
-
-        this.zeroTimeBase = zeroTime.get(Calendar.HOUR_OF_DAY)*3600000 + zeroTime.get(Calendar.MINUTE)*60000 + zeroTime.get(Calendar.SECOND)*1000;
-        this.zeroTimeWeekDay = zeroTime.get(Calendar.DAY_OF_WEEK) % 7;
-    }
+        @Override
+        public void cancel()
+        {
+            this.close();
+        }
 
-    @Override
-    protected String doInBackground(String... params) {
+        private boolean begin() throws IOException
+        {
+            long end = siReader.readBackupEnd();
+            if (end < 0) {
+                Log.w(TAG, "Could not read backup memory pointer");
+                emitBackupDone(false, 0, 0);
+                return false;
+            }
 
-        while(this.taskState != TaskState.Quit) {
-            if (this.taskState == TaskState.Probe) {
-                if (this.probe()) {
-                    Log.d(TAG, "Found USB device, waiting for permissions");
+            download = new SIBackupDownload(siReader.getProtoObj(), siReader.getDeviceInfo().extendedMode, serialNo, file);
+            download.setPipelineDepth(1);
+            download.begin(SIReader.BACKUP_START, Math.max(SIReader.BACKUP_START, end), new SIBackupDownload.Listener() {
+                @Override
+                public void onProgress(long confirmedAddress, long records, long recordsPerSecond) {
+                    long now = SystemClock.elapsedRealtime();
+                    if (now - lastEmit >= BACKUP_PROGRESS_INTERVAL) {
+                        lastEmit = now;
+                        emitBackupProgress(records, recordsPerSecond);
+                    }
                 }
-            }
-            if (this.taskState == TaskState.Probe || this.taskState == TaskState.WaitPerm) {
+            });
+            return true;
+        }
+
+        private void close()
+        {
+            if (download != null) {
                 try {
-                    Thread.sleep(5000);
+                    download.close();
                 }
-                catch(InterruptedException e)
-                {
-                    Log.d(TAG, "thread sleep interrupted");
+                catch (IOException e) {
+                    Log.w(TAG, "Failed to close backup file: " + e.getMessage());
                 }
             }
-            if (this.taskState == TaskState.ProbeSI) {
-                Log.d(TAG, "Probing for SI device under USB device");
-                UsbDeviceConnection conn = manager.openDevice(device);
-                if (conn != null) {
-                    UsbSerialDevice port = UsbSerialDevice.createUsbSerialDevice(device, conn);
-                    this.siReader = new SIReader(port);
-                    if (this.siReader.probeDevice()) {
-                        // Found device, continue to card reading!
-                        SIReader.Info deviceInfo = this.siReader.getDeviceInfo();
-                        Log.d(TAG, "Found device (serial: " + deviceInfo.serialNo + "), continue to reading card");
-                        this.taskState = TaskState.ReadingCard;
-                        this.emitDeviceDetected(deviceInfo);
-                    }
-                    else {
-                        this.taskState = TaskState.Probe;
-                    }
-                }
-            }
-            if (this.taskState == TaskState.ReadingCard) {
-                this.readCardOnce();
-            }
         }
-
-        if(siReader != null) {
-            siReader.close();
-        }
-
-        return "";
     }
 
-    @Override
-    protected void onPostExecute(String result) {
+    CardReader(Context context, UsbManager manager, UsbDevice device, CardParser parser, StationProfiles profiles, CardReaderManager owner) {
+        super("CardReader-" + device.getDeviceName());
+        this.context = context;
+        this.manager = manager;
+        this.device = device;
+        this.parser = parser;
+        this.profiles = profiles;
+        this.owner = owner;
+    }
 
+    /**
+     * Number of block requests kept in flight during card readout, 1 gives
+     * plain stop-and-wait. Must be set before the thread is started.
+     */
+    void setPipelineDepth(int depth)
+    {
+        this.pipelineDepth = Math.max(1, depth);
     }
 
-    @Override
-    protected void onPreExecute() {
+    UsbDevice getDevice()
+    {
+        return device;
+    }
 
+    /**
+     * Send ReadHeader and ReadPunches events while an SI-Card 6 or later is
+     * being read, before the Readout event. Must be set before the thread is started.
+     */
+    void setProgressiveEvents(boolean progressive)
+    {
+        this.progressive = progressive;
     }
 
-    @Override
-    protected void onProgressUpdate(String... text) {
+    /**
+     * Switch stations found at 4800 baud to 38400 baud after probing, off by
+     * default. This changes the baud rate stored in the station itself, so
+     * only turn it on when the user asked for it. Must be set before the
+     * thread is started.
+     */
+    void setHighSpeed(boolean highSpeed)
+    {
+        this.highSpeed = highSpeed;
+    }
 
+    /**
+     * Queue punches sent by the station in autosend mode (0xd3) to stream,
+     * null to ignore them. Must be set before the thread is started.
+     */
+    void setPunchStream(SIPunchStream punchStream)
+    {
+        this.punchStream = punchStream;
     }
 
-    private boolean probe()
+    /**
+     * Download the station's backup memory to file, resuming an earlier
+     * download to the same file. Run on the reader thread as a bulk task once
+     * the current wait for a card times out (at most INSERT_WAIT_TIMEOUT ms),
+     * a card inserted meanwhile is read first.
+     * Progress is sent as BackupProgress and BackupDone events.
+     */
+    void requestBackupDownload(File file)
     {
-        HashMap<String, UsbDevice> usbDevices = manager.getDeviceList();
-        if (!usbDevices.isEmpty()) {
-            for (Map.Entry<String, UsbDevice> entry : usbDevices.entrySet()) {
-                device = entry.getValue();
-                int deviceVID = device.getVendorId();
-                int devicePID = device.getProductId();
-
-                if (UsbSerialDevice.isSupported(device)) {
-                    // There is a supported device connected - request permission to access it.
-                    // Create intent (used to get USB permissions)
-                    this.taskState = TaskState.WaitPerm;
-                    PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, new Intent(UsbBroadcastReceiver.USB_PERMISSION), 0);
-                    IntentFilter filter = new IntentFilter(UsbBroadcastReceiver.USB_PERMISSION);
-                    UsbBroadcastReceiver usbReceiver = new UsbBroadcastReceiver(this);
-                    context.registerReceiver(usbReceiver, filter);
-                    manager.requestPermission(device, pendingIntent);
-                    return true;
-                } else {
-                    device = null;
-                }
-            }
-        }
+        scheduler.submit(SICommandScheduler.Lane.Bulk, new BackupTask(file));
+    }
 
-        return false;
+    /**
+     * @return serial number of the station, 0 until it has been probed
+     */
+    long getSerialNo()
+    {
+        return serialNo;
     }
 
-    private void readCardOnce()
+    /**
+     * @return metrics of the link to the station, null until it has been probed
+     */
+    SIMetrics getMetrics()
     {
-        CardEntry entry;
-        byte[] msg;
-        byte[] reply;
-        SIProtocol proto = siReader.getProtoObj();
-        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        return metrics;
+    }
 
-        if (siReader.waitForCardInsert(500, cardInfo)) {
-            switch(cardInfo.format) {
-                case (byte)0xe5: {
-                    entry = new CardEntry();
-
-                    // EMIT card reading
-                    this.emitReadStarted(cardInfo);
-
-                    proto.writeMsg((byte) 0xb1, null, true);
-                    reply = proto.readMsg(5000, (byte) 0xb1);
-                    if (reply != null && card5EntryParse(reply, entry)) {
-                        proto.writeAck();
-                        // EMIT card read out
-                        this.emitReadout(entry);
-                    } else {
-                        // EMIT card read failed
-                        this.emitReadCanceled();
-                    }
-                    break;
-                }
-                case (byte)0xe6: {
-                    entry = new CardEntry();
-                    reply = new byte[7 * 128];
-
-                    // EMIT card reading
-                    this.emitReadStarted(cardInfo);
-
-                    msg = new byte[]{0x00};
-                    byte[] blocks = new byte[]{0, 6, 7, 2, 3, 4, 5};
-                    for (int i = 0; i < 7; i++) {
-                        msg[0] = blocks[i];
-                        proto.writeMsg((byte) 0xe1, msg, true);
-                        byte[] tmpReply = proto.readMsg(5000, (byte) 0xe1);
-                        if (tmpReply == null || tmpReply.length != 128 + 6 + 3) {
-                            // EMIT card read failed
-                            reply = null;
-                            this.emitReadCanceled();
-                            break;
-                        }
-                        System.arraycopy(tmpReply, 6, reply, i * 128, 128);
-                        if (i > 0) {
-                            if (tmpReply[124] == (byte) 0xee &&
-                                tmpReply[125] == (byte) 0xee &&
-                                tmpReply[126] == (byte) 0xee &&
-                                tmpReply[127] == (byte) 0xee) {
-                                // Stop reading, no more punches
-                                break;
-                            }
-                        }
-                    }
-                    if (reply != null && card6EntryParse(reply, entry)) {
-                        proto.writeAck();
-                        // EMIT card readout
-                        this.emitReadout(entry);
-                    } else {
-                        // EMIT card read failed
-                        this.emitReadCanceled();
-                    }
-                    break;
-                }
-                case (byte)0xe8: {
-                    entry = new CardEntry();
-
-                    // EMIT card reading
-                    this.emitReadStarted(cardInfo);
-
-                    msg = new byte[]{0x00};
-                    proto.writeMsg((byte) 0xef, msg, true);
-                    byte[] tmpReply = proto.readMsg(5000, (byte) 0xef);
-                    if (tmpReply == null || tmpReply.length != 128 + 6 + 3) {
-                        // EMIT card read failed
-                        this.emitReadCanceled();
-                        break;
-                    }
+    /**
+     * Ask the reader to stop, a readout in progress is canceled without
+     * waiting for read timeouts. Safe to call from any thread.
+     */
+    void quit()
+    {
+        running = false;
+        SIReader reader = this.siReader;
+        if (reader != null) {
+            reader.cancel();
+        }
+        this.interrupt();
+    }
 
-                    int series = tmpReply[24] & 0x0f;
-                    int nextBlock = 1;
-                    int blockCount = 1;
-                    if (series == 0x0f) {
-                        // siac
-                        nextBlock = 4;
-                        blockCount = (tmpReply[22] + 31) / 32;
-                    }
-                    reply = new byte[128*(1+blockCount)];
-                    System.arraycopy(tmpReply, 6, reply, 0, 128);
-
-                    for (int i=nextBlock; i<nextBlock+blockCount; i++) {
-                        msg[0] = (byte)i;
-                        proto.writeMsg((byte)0xef, msg, true);
-                        tmpReply = proto.readMsg(5000, (byte)0xef);
-                        if (tmpReply == null || tmpReply.length != 128 + 6 + 3) {
-                            // EMIT card read failed
-                            reply = null;
-                            this.emitReadCanceled();
-                            break;
-                        }
-                        System.arraycopy(tmpReply, 6, reply, (i-nextBlock+1)*128, 128);
+    @Override
+    public void run() {
+        try {
+            if (this.probeSI()) {
+                while (running) {
+                    if (scheduler.hasWork()) {
+                        this.scheduleCardInsert();
+                        scheduler.runNext();
                     }
-                    if (reply != null && card9EntryParse(reply, entry)) {
-                        proto.writeAck();
-                        // EMIT card read out
-                        this.emitReadout(entry);
-                    } else {
-                        // EMIT card read failed
-                        this.emitReadCanceled();
+                    else {
+                        this.readCardOnce();
                     }
-                    break;
                 }
-                default:
-                    break;
             }
         }
+        finally {
+            scheduler.clear();
+            if (siReader != null) {
+                siReader.close();
+            }
+            if (serialNo != 0) {
+                this.emitDeviceLost();
+            }
+            owner.onReaderStopped(this);
+        }
     }
 
-    private boolean card5EntryParse(byte[] data, CardEntry entry)
+    private boolean probeSI()
     {
-        boolean ret = false;
-        int offset = 0;
-        if (data.length == 136) {
-            // Start at data part
-            offset += 5;
-            // Get cardId
-            if (data[offset+6] == 0x00 || data[offset+6] == 0x01) {
-                entry.cardId = (byteToUnsignedInt(data[offset+4]) << 8) + byteToUnsignedInt(data[offset+5]);
-            }
-            else if (byteToUnsignedInt(data[offset+6]) < 5) {
-                entry.cardId = byteToUnsignedInt(data[offset+6])*100000 + (byteToUnsignedInt(data[offset+4]) << 8) + byteToUnsignedInt(data[offset+5]);
-            }
-            else {
-                entry.cardId = (byteToUnsignedInt(data[offset+6]) << 16) + (byteToUnsignedInt(data[offset+4]) << 8) + byteToUnsignedInt(data[offset+5]);
-            }
-            entry.startTime = (byteToUnsignedInt(data[offset+19]) << 8) + byteToUnsignedInt(data[offset+20]);
-            entry.finishTime = (byteToUnsignedInt(data[offset+21]) << 8) + byteToUnsignedInt(data[offset+22]);
-            entry.checkTime = (byteToUnsignedInt(data[offset+25]) << 8) + byteToUnsignedInt(data[offset+26]);
-            int punchCount = byteToUnsignedInt(data[offset+23]) - 1;
-            for (int i=0; i<punchCount && i<30; i++) {
-                CardEntry.Punch punch = new CardEntry.Punch();
-                int baseoffset = offset + 32 + (i/5)*16 + 1 + 3*(i%5);
-                punch.code = byteToUnsignedInt(data[baseoffset]);
-                punch.time = (byteToUnsignedInt(data[baseoffset+1]) << 8) + byteToUnsignedInt(data[baseoffset+2]);
-                entry.punches.add(punch);
-            }
-            for (int i=30; i<punchCount; i++) {
-                CardEntry.Punch punch = new CardEntry.Punch();
-                int baseoffset = offset + 32 + (i-30)*16;
-                punch.code = data[baseoffset];
-                punch.time = 0;
-                entry.punches.add(punch);
-            }
+        Log.d(TAG, "Probing for SI device under USB device " + device.getDeviceName());
+        UsbDeviceConnection conn = manager.openDevice(device);
+        if (conn == null) {
+            return false;
+        }
 
-            card5TimeAdjust(entry);
+        UsbSerialDevice port = UsbSerialDevice.createUsbSerialDevice(device, conn);
+        if (port == null) {
+            conn.close();
+            return false;
+        }
 
-            ret = true;
+        // Try the settings found the last time this device was connected first
+        String usbKey = StationProfiles.usbKey(device);
+        this.siReader = new SIReader(port, ASYNC_RECEIVE);
+        if (!running || !this.siReader.probeDevice(profiles.get(usbKey))) {
+            return false;
         }
 
-        return ret;
-    }
+        if (highSpeed && running) {
+            this.siReader.switchToHighSpeed();
+        }
 
-    private boolean card6EntryParse(byte[] data, CardEntry entry)
-    {
-        entry.cardId = (byteToUnsignedInt(data[10]) << 24) | (byteToUnsignedInt(data[11]) << 16) | (byteToUnsignedInt(data[12]) << 8) | byteToUnsignedInt(data[13]);
-
-        CardEntry.Punch startPunch = new CardEntry.Punch();
-        CardEntry.Punch finishPunch = new CardEntry.Punch();
-        CardEntry.Punch checkPunch = new CardEntry.Punch();
-        parsePunch(Arrays.copyOfRange(data, 24, 28), startPunch);
-        parsePunch(Arrays.copyOfRange(data, 20, 24), finishPunch);
-        parsePunch(Arrays.copyOfRange(data, 28, 32), checkPunch);
-        entry.startTime = startPunch.time;
-        entry.finishTime = finishPunch.time;
-        entry.checkTime = checkPunch.time;
-
-        int punches = min(data[18], 192);
-        for (int i=0; i<punches; i++) {
-            CardEntry.Punch tmpPunch = new CardEntry.Punch();
-            if (parsePunch(Arrays.copyOfRange(data, 128+4*i, 128+4*i+4), tmpPunch)) {
-                entry.punches.add(tmpPunch);
-            }
+        // Found device, continue to card reading!
+        SIReader.Info deviceInfo = this.siReader.getDeviceInfo();
+        profiles.put(usbKey, deviceInfo);
+        // Throughput is known after a switch to high speed, otherwise it is taken from readouts
+        this.metrics = this.siReader.getProtoObj().getMetrics();
+        if (punchStream != null) {
+            this.streamPunches(this.siReader.getProtoObj(), deviceInfo.serialNo);
         }
+        Log.d(TAG, "Link to device (serial: " + deviceInfo.serialNo + ") at " + deviceInfo.baudRate + " baud, " + metrics.getThroughput() + " bytes/s");
+        this.serialNo = deviceInfo.serialNo;
+        Log.d(TAG, "Found device (serial: " + deviceInfo.serialNo + "), continue to reading card");
+        this.emitDeviceDetected(deviceInfo);
         return true;
     }
 
-    private boolean card9EntryParse(byte[] data, CardEntry entry)
+    /**
+     * Decode punch records right on the USB read thread and queue them,
+     * they never reach waitForCardInsert and do not hold up card readout.
+     */
+    private void streamPunches(SIProtocol proto, final long serialNo)
     {
-        entry.cardId = (byteToUnsignedInt(data[25]) << 16) | (byteToUnsignedInt(data[26]) << 8) | byteToUnsignedInt(data[27]);
-        int series = data[24] & 0x0f;
-
-        CardEntry.Punch startPunch = new CardEntry.Punch();
-        CardEntry.Punch finishPunch = new CardEntry.Punch();
-        CardEntry.Punch checkPunch = new CardEntry.Punch();
-        parsePunch(Arrays.copyOfRange(data, 12, 16), startPunch);
-        parsePunch(Arrays.copyOfRange(data, 16, 20), finishPunch);
-        parsePunch(Arrays.copyOfRange(data, 8, 12), checkPunch);
-        entry.startTime = startPunch.time;
-        entry.finishTime = finishPunch.time;
-        entry.checkTime = checkPunch.time;
-
-        if (series == 1) {
-            // SI card 9
-            int punches = min(data[22], 50);
-            for (int i=0; i<punches; i++) {
-                CardEntry.Punch tmpPunch = new CardEntry.Punch();
-                if (parsePunch(Arrays.copyOfRange(data, 14*4+4*i, 14*4+4*i+4), tmpPunch)) {
-                    entry.punches.add(tmpPunch);
+        final SIPunchStream stream = punchStream;
+        proto.setFrameListener((byte)0xd3, new SIProtocol.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                SIPunch punch = parser.parseTransmitRecord(serialNo, frame, length);
+                if (punch != null && !stream.offer(punch)) {
+                    Log.w(TAG, "Punch queue full, dropping punch of card " + punch.cardId);
                 }
             }
+        });
+    }
+
+    /**
+     * Run a card readout found waiting in the frame queues as the next task,
+     * ahead of any bulk work.
+     */
+    private void scheduleCardInsert()
+    {
+        final SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        if (!siReader.pollCardInsert(cardInfo)) {
+            return;
         }
-        else if(series == 2) {
-            // SI card 8
-            int punches = min(data[22], 30);
-            for (int i=0; i<punches; i++) {
-                CardEntry.Punch tmpPunch = new CardEntry.Punch();
-                if (parsePunch(Arrays.copyOfRange(data, 34*4+4*i, 34*4+4*i+4), tmpPunch)) {
-                    entry.punches.add(tmpPunch);
+
+        scheduler.submit(SICommandScheduler.Lane.Readout, new SICommandScheduler.Task() {
+            @Override
+            public boolean step() {
+                startReadout();
+                Trace.beginSection("SI readout");
+                try {
+                    readCard(siReader.getProtoObj(), cardInfo);
                 }
-            }
-        }
-        else if(series == 4) {
-            // pCard
-            int punches = min(data[22], 20);
-            for (int i=0; i<punches; i++) {
-                CardEntry.Punch tmpPunch = new CardEntry.Punch();
-                if (parsePunch(Arrays.copyOfRange(data, 44*4+4*i, 44*4+4*i+4), tmpPunch)) {
-                    entry.punches.add(tmpPunch);
+                finally {
+                    Trace.endSection();
                 }
+                return false;
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+    }
+
+    private void readCardOnce()
+    {
+        SIProtocol proto = siReader.getProtoObj();
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+
+        int insertTimeout = proto.isAsyncReceive() ? INSERT_WAIT_TIMEOUT : INSERT_POLL_TIMEOUT;
+        if (siReader.waitForCardInsert(insertTimeout, cardInfo)) {
+            this.startReadout();
+            Trace.beginSection("SI readout");
+            try {
+                this.readCard(proto, cardInfo);
+            }
+            finally {
+                Trace.endSection();
             }
         }
-        else if(series == 15) {
-            // SI card 10, 11, siac
-            int punches = min(data[22], 128);
-            for (int i=0; i<punches; i++) {
-                CardEntry.Punch tmpPunch = new CardEntry.Punch();
-                if (parsePunch(Arrays.copyOfRange(data, 128+4*i, 128+4*i+4), tmpPunch)) {
-                    entry.punches.add(tmpPunch);
+    }
+
+    private void readCard(SIProtocol proto, SIReader.SiCardInfo cardInfo)
+    {
+        CardEntry entry;
+        byte[] reply;
+
+        switch(cardInfo.format) {
+            case (byte)0xe5: {
+                entry = new CardEntry();
+
+                // EMIT card reading
+                this.emitReadStarted(cardInfo);
+
+                reply = SIBlockReader.awaitReply(proto.request((byte) 0xb1, null, CARD5_REPLY_SIZE, BLOCK_TIMEOUT));
+                if (reply != null && this.parseCard(cardInfo.format, reply, entry)) {
+                    proto.writeAck();
+                    owner.onReadout(this, cardInfo.format, reply, entry);
+                    // EMIT card read out
+                    this.emitReadout(entry);
+                } else {
+                    // EMIT card read failed
+                    this.emitReadCanceled();
                 }
+                break;
             }
+            case (byte)0xe6:
+                this.readBlockCard(proto, cardInfo, (byte) 0xe1);
+                break;
+            case (byte)0xe8:
+                this.readBlockCard(proto, cardInfo, (byte) 0xef);
+                break;
+            default:
+                break;
         }
-
-        return true;
     }
 
-    private void card5TimeAdjust(CardEntry entry)
+    /**
+     * Read an SI-Card 6 or later. Block 0 is read first, then only the
+     * blocks the card layout and the punch count say hold punches.
+     */
+    private void readBlockCard(SIProtocol proto, SIReader.SiCardInfo cardInfo, byte command)
     {
-        long pmOffset = (zeroTimeBase >= HALF_DAY) ? HALF_DAY : 0;
+        CardEntry entry = new CardEntry();
+        byte[] block0 = new byte[BLOCK_SIZE];
+        SIBlockReader blockReader = new SIBlockReader(proto, pipelineDepth);
 
-        if (entry.startTime != 0) {
-            entry.startTime = entry.startTime * 1000 + pmOffset;
-            if (entry.startTime < zeroTimeBase) {
-                entry.startTime += HALF_DAY;
-            }
-            entry.startTime -= zeroTimeBase;
+        // EMIT card reading
+        this.emitReadStarted(cardInfo);
+
+        if (!blockReader.read(command, new byte[]{0}, block0, 0, new boolean[1], null)) {
+            // EMIT card read failed
+            this.emitReadCanceled();
+            return;
         }
-        if (entry.checkTime != 0) {
-            entry.checkTime = entry.checkTime * 1000 + pmOffset;
-            if (entry.checkTime < zeroTimeBase) {
-                entry.checkTime += HALF_DAY;
-            }
-            entry.checkTime -= zeroTimeBase;
+        if (this.readCached(proto, cardInfo, block0, entry)) {
+            return;
         }
-        long currentBase = pmOffset;
-        long lastTime = zeroTimeBase;
-        for (CardEntry.Punch punch : entry.punches) {
-            long tmpTime = punch.time * 1000 + currentBase;
-            //if (tmpTime < lastTime) {
-            //    currentBase += HALF_DAY;
-            //}
-            //tmpTime = punch.time * 1000 + currentBase;
-            punch.time = tmpTime - zeroTimeBase;
-            lastTime = tmpTime;
+
+        CardLayout layout = CardLayout.fromBlock0(cardInfo.format, block0);
+        int punchCount = layout.punchCount(block0);
+        int blockCount = layout.blocksNeeded(punchCount);
+        Log.d(TAG, layout.name + " with " + punchCount + " punches, reading " + blockCount + " more blocks");
+
+        byte[] reply = new byte[BLOCK_SIZE * (1 + blockCount)];
+        System.arraycopy(block0, 0, reply, 0, BLOCK_SIZE);
+        byte[] blocks = Arrays.copyOf(layout.blocks, blockCount);
+        boolean[] received = new boolean[blockCount];
+
+        // Card pulled out during an earlier read, only read the blocks still missing
+        PartialReadouts.Partial partial = owner.getPartialReadouts().take(cardInfo.cardId, cardInfo.format, block0);
+        if (partial != null && partial.received.length == blockCount) {
+            Log.d(TAG, "Resuming readout of card " + cardInfo.cardId + ", " + partial.receivedCount() + " of " + blockCount + " blocks kept");
+            System.arraycopy(partial.data, BLOCK_SIZE, reply, BLOCK_SIZE, reply.length - BLOCK_SIZE);
+            System.arraycopy(partial.received, 0, received, 0, blockCount);
         }
-        long tmpTime = entry.finishTime * 1000 + currentBase;
-        if (tmpTime < lastTime) {
-            currentBase += HALF_DAY;
+
+        PunchStreamer streamer = null;
+        if (progressive) {
+            // Times are in block 0, show them before the punches have been read
+            CardEntry header = new CardEntry(0);
+            if (parser.parseHeader(cardInfo.format, block0, header)) {
+                this.emitReadHeader(header);
+            }
+            if (punchCount > 0 && layout.punchOffset >= 0) {
+                streamer = new PunchStreamer(parser, reply, layout, punchCount, blockCount, header.cardId, new PunchStreamer.Sink() {
+                    @Override
+                    public void onPunches(CardEntry batch, int firstPunch) {
+                        emitReadPunches(batch, firstPunch);
+                    }
+                });
+                for (int i=0; i<blockCount; i++) {
+                    if (received[i]) {
+                        streamer.onBlock(i);
+                    }
+                }
+                streamer.sendAvailable();
+            }
+        }
+
+        if (!blockReader.read(command, blocks, reply, BLOCK_SIZE, received, streamer)) {
+            // Most likely pulled out, keep what was read for when it is back
+            owner.getPartialReadouts().put(cardInfo.cardId, cardInfo.format, reply, received);
+            // EMIT card read failed
+            this.emitReadCanceled();
+        } else if (this.parseCard(cardInfo.format, reply, entry)) {
+            proto.writeAck();
+            owner.onReadout(this, cardInfo.format, reply, entry);
+            // EMIT card read out
+            this.emitReadout(entry);
+        } else {
+            // EMIT card read failed
+            this.emitReadCanceled();
         }
-        tmpTime = entry.finishTime * 1000 + currentBase;
-        entry.finishTime = tmpTime - zeroTimeBase;
     }
 
-    private boolean parsePunch(byte[] data, CardEntry.Punch punch)
+    /**
+     * Finish the readout from the last readout of the card if block 0 shows
+     * no changes since then, saving the round trips for the other blocks.
+     */
+    private boolean readCached(SIProtocol proto, SIReader.SiCardInfo cardInfo, byte[] block0, CardEntry entry)
     {
-        if (data[0] == (byte)0xee && data[1] == (byte)0xee && data[2] == (byte)0xee && data[3] == (byte)0xee) {
+        ReadoutJournal.Record cached = owner.getCachedReadout(cardInfo.cardId);
+        if (cached == null || cached.format != cardInfo.format || !CardParser.sameFingerprint(cardInfo.format, cached.data, block0)) {
             return false;
         }
-        punch.code = byteToUnsignedInt(data[1]) + 256*((byteToUnsignedInt(data[0])>>6) & 0x03);
-
-        long basetime = ((byteToUnsignedInt(data[2]) << 8) | byteToUnsignedInt(data[3])) * 1000;
-        if ((data[0] & 0x01) == 0x01) {
-            basetime += HALF_DAY;
-        }
-        int dayOfWeek = (data[0] >> 1) & 0x07;
-        if (dayOfWeek < zeroTimeWeekDay) {
-            dayOfWeek += 7;
+        if (!this.parseCard(cardInfo.format, cached.data, entry)) {
+            return false;
         }
-        dayOfWeek -= zeroTimeWeekDay;
-        basetime += dayOfWeek * 24 * 3600 * 1000;
-        basetime -= zeroTimeBase;
-
-        punch.time = basetime;
 
+        Log.d(TAG, "Card " + cardInfo.cardId + " unchanged since last readout, using cached data");
+        proto.writeAck();
+        // EMIT card read out
+        this.emitReadout(entry);
         return true;
     }
 
+    private void startReadout()
+    {
+        this.readStartTime = System.nanoTime();
+        this.readStartBytes = metrics.getCount(SIMetrics.Counter.BytesIn);
+    }
+
+    /**
+     * Parse the card data read, records the time spent reading blocks since
+     * the card was detected and the time spent parsing. The bytes received
+     * meanwhile give the throughput of the link, without any extra traffic.
+     */
+    private boolean parseCard(byte format, byte[] data, CardEntry entry)
+    {
+        long start = System.nanoTime();
+        metrics.record(SIMetrics.Phase.CardRead, start - readStartTime);
+        metrics.setThroughput((metrics.getCount(SIMetrics.Counter.BytesIn) - readStartBytes) * 1000000000L / Math.max(1, start - readStartTime));
+
+        Trace.beginSection("SI parse");
+        try {
+            return parser.parse(format, data, entry);
+        }
+        finally {
+            Trace.endSection();
+            metrics.record(SIMetrics.Phase.Parse, System.nanoTime() - start);
+        }
+    }
+
     private void emitDeviceDetected(SIReader.Info deviceInfo) {
         Intent intent = new Intent(EVENT_IDENTIFIER);
         intent.putExtra("Event", Event.DeviceDetected);
         intent.putExtra("Serial", deviceInfo.serialNo);
+        intent.putExtra("BaudRate", deviceInfo.baudRate);
+        // 0 until measured by a switch to high speed or a readout
+        intent.putExtra("BytesPerSecond", metrics.getThroughput());
         LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
     }
 
     private void emitReadStarted(SIReader.SiCardInfo cardInfo) {
         Intent intent = new Intent(EVENT_IDENTIFIER);
         intent.putExtra("Event", Event.ReadStarted);
+        intent.putExtra("Serial", serialNo);
         intent.putExtra("CardId", cardInfo.cardId);
         LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
     }
 
+    private void emitReadHeader(CardEntry header) {
+        Intent intent = new Intent(EVENT_IDENTIFIER);
+        intent.putExtra("Event", Event.ReadHeader);
+        intent.putExtra("Serial", serialNo);
+        intent.putExtra("Entry", header);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+
+    private void emitReadPunches(CardEntry batch, int firstPunch) {
+        Intent intent = new Intent(EVENT_IDENTIFIER);
+        intent.putExtra("Event", Event.ReadPunches);
+        intent.putExtra("Serial", serialNo);
+        intent.putExtra("Entry", batch);
+        intent.putExtra("FirstPunch", firstPunch);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+
+    private void emitBackupProgress(long records, long recordsPerSecond) {
+        Intent intent = new Intent(EVENT_IDENTIFIER);
+        intent.putExtra("Event", Event.BackupProgress);
+        intent.putExtra("Serial", serialNo);
+        intent.putExtra("Records", records);
+        intent.putExtra("RecordsPerSecond", recordsPerSecond);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+
+    private void emitBackupDone(boolean complete, long records, long recordsPerSecond) {
+        Intent intent = new Intent(EVENT_IDENTIFIER);
+        intent.putExtra("Event", Event.BackupDone);
+        intent.putExtra("Serial", serialNo);
+        intent.putExtra("Complete", complete);
+        intent.putExtra("Records", records);
+        intent.putExtra("RecordsPerSecond", recordsPerSecond);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+
     private void emitReadCanceled() {
         Intent intent = new Intent(EVENT_IDENTIFIER);
         intent.putExtra("Event", Event.ReadCanceled);
+        intent.putExtra("Serial", serialNo);
         LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
     }
 
     private void emitReadout(CardEntry entry) {
         Intent intent = new Intent(EVENT_IDENTIFIER);
         intent.putExtra("Event", Event.Readout);
+        intent.putExtra("Serial", serialNo);
         intent.putExtra("Entry", entry);
+        // Lets the receiver record the delivery time in the station metrics
+        intent.putExtra("Timestamp", SystemClock.elapsedRealtimeNanos());
         LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
     }
 
-    private static int byteToUnsignedInt(byte in)
-    {
-        return in & 0xff;
+    private void emitDeviceLost() {
+        Intent intent = new Intent(EVENT_IDENTIFIER);
+        intent.putExtra("Event", Event.DeviceLost);
+        intent.putExtra("Serial", serialNo);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
     }
 }
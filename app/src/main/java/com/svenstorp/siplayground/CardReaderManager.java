@@ -0,0 +1,471 @@
+package com.svenstorp.siplayground;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.felhr.usbserial.UsbSerialDevice;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Finds all supported USB serial devices and runs one CardReader, with its
+ * own thread and SIProtocol instance, per device. Events from all readers
+ * are sent on CardReader.EVENT_IDENTIFIER, tagged with the station serial.
+ *
+ * Devices are probed on start and whenever the system reports a USB device
+ * attached, a detached device has its reader stopped right away.
+ *
+ * Successful readouts are written to a ReadoutJournal, which is replayed on
+ * start to rebuild the last readout of every card. Blocks of a card pulled
+ * out mid-read are kept for a while, so only the missing ones are read when
+ * it is reinserted.
+ *
+ * With punch streaming on, punches sent by stations in autosend mode are
+ * queued by the readers and delivered to PunchListeners in batches on the
+ * main thread.
+ */
+public class CardReaderManager {
+    public interface PunchListener {
+        void onPunches(List<SIPunch> punches);
+    }
+
+    private static final int DEFAULT_METRICS_DUMP_INTERVAL = 60000;
+    private static final String JOURNAL_FILE = "readouts.journal";
+    private static final int PUNCH_DELIVERY_INTERVAL = 100;
+    private static final int MAX_PUNCH_BATCH = 1000;
+    private final String TAG = CardReaderManager.class.getSimpleName();
+    private Context context;
+    private UsbManager manager;
+    private CardParser parser;
+    private StationProfiles profiles;
+    private ReadoutJournal journal;
+    // Last journaled readout per card id, also used to skip re-reading unchanged cards
+    private final Map<Long, ReadoutJournal.Record> readouts = new HashMap<>();
+    // Blocks of cards pulled out mid-read, resumed when reinserted in any station
+    private final PartialReadouts partials = new PartialReadouts();
+    // Running readers and devices waiting for permission, keyed by USB device name
+    private final Map<String, CardReader> readers = new HashMap<>();
+    private final Set<String> pendingPermission = new HashSet<>();
+    private UsbBroadcastReceiver usbReceiver;
+    private volatile boolean running;
+    private int pipelineDepth = 1;
+    private boolean progressive = false;
+    private boolean highSpeed = false;
+    private Handler handler;
+    private int metricsDumpInterval = DEFAULT_METRICS_DUMP_INTERVAL;
+    private SIPunchStream punchStream;
+    private final List<PunchListener> punchListeners = new CopyOnWriteArrayList<>();
+    private final Runnable punchDelivery = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            // Full batch means more are waiting, deliver those without waiting another interval
+            boolean full = deliverPunches() == MAX_PUNCH_BATCH;
+            handler.postDelayed(this, full ? 0 : PUNCH_DELIVERY_INTERVAL);
+        }
+    };
+    private final Runnable metricsDump = new Runnable() {
+        @Override
+        public void run() {
+            dumpMetrics();
+            if (running && metricsDumpInterval > 0) {
+                handler.postDelayed(this, metricsDumpInterval);
+            }
+        }
+    };
+
+    private static class UsbBroadcastReceiver extends BroadcastReceiver {
+        // logging tag
+        private final String TAG = UsbBroadcastReceiver.class.getSimpleName();
+        // usb permission tag name
+        public static final String USB_PERMISSION ="com.svenstorp.siplayground.USB_PERMISSION";
+        private CardReaderManager parent;
+
+        public UsbBroadcastReceiver(CardReaderManager parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (device == null) {
+                return;
+            }
+
+            if (USB_PERMISSION.equals(action)) {
+                boolean granted = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false);
+                Log.d(TAG, "Permission to connect to device " + (granted ? "granted" : "denied"));
+                parent.onPermissionResult(device, granted);
+            }
+            else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+                Log.d(TAG, "USB device attached: " + device.getDeviceName());
+                parent.probe();
+            }
+            else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+                Log.d(TAG, "USB device detached: " + device.getDeviceName());
+                parent.onDetached(device);
+            }
+        }
+    }
+
+    public CardReaderManager(Context context, Calendar zeroTime) {
+        this.context = context;
+        this.manager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+        this.parser = new CardParser(zeroTime);
+        this.profiles = new StationProfiles(context);
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Number of block requests kept in flight by each reader, see
+     * CardReader.setPipelineDepth. Must be set before start.
+     */
+    void setPipelineDepth(int depth)
+    {
+        this.pipelineDepth = Math.max(1, depth);
+    }
+
+    /**
+     * CardReader.setProgressiveEvents for all readers. Must be set before start.
+     */
+    void setProgressiveEvents(boolean progressive)
+    {
+        this.progressive = progressive;
+    }
+
+    /**
+     * CardReader.setHighSpeed for all readers, off by default. Must be set
+     * before start.
+     */
+    void setHighSpeed(boolean highSpeed)
+    {
+        this.highSpeed = highSpeed;
+    }
+
+    /**
+     * Deliver punches from stations in autosend mode to the PunchListeners.
+     * Must be set before start.
+     */
+    void setPunchStreaming(boolean streaming)
+    {
+        this.punchStream = streaming ? new SIPunchStream() : null;
+    }
+
+    /**
+     * Listener called on the main thread with the punches received since the last call.
+     */
+    public void addPunchListener(PunchListener listener)
+    {
+        punchListeners.add(listener);
+    }
+
+    public void removePunchListener(PunchListener listener)
+    {
+        punchListeners.remove(listener);
+    }
+
+    /**
+     * Interval in ms between metrics dumps to the log, 0 to disable. Must be set before start.
+     */
+    void setMetricsDumpInterval(int interval)
+    {
+        this.metricsDumpInterval = interval;
+    }
+
+    public synchronized void start()
+    {
+        if (running) {
+            return;
+        }
+        running = true;
+
+        // Replays on the journal writer thread, readouts made meanwhile are written after
+        journal = new ReadoutJournal(new File(context.getFilesDir(), JOURNAL_FILE));
+        journal.open(new ReadoutJournal.Listener() {
+            @Override
+            public void onRecord(ReadoutJournal.Record record) {
+                synchronized (readouts) {
+                    // A live readout made during the replay is newer than anything in the journal
+                    ReadoutJournal.Record current = readouts.get(record.cardId);
+                    if (current == null || current.timestamp <= record.timestamp) {
+                        readouts.put(record.cardId, record);
+                    }
+                }
+            }
+        });
+
+        usbReceiver = new UsbBroadcastReceiver(this);
+        IntentFilter filter = new IntentFilter(UsbBroadcastReceiver.USB_PERMISSION);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        context.registerReceiver(usbReceiver, filter);
+
+        // Pick up the devices connected before we started listening
+        probe();
+
+        if (metricsDumpInterval > 0) {
+            handler.postDelayed(metricsDump, metricsDumpInterval);
+        }
+        if (punchStream != null) {
+            handler.postDelayed(punchDelivery, PUNCH_DELIVERY_INTERVAL);
+        }
+    }
+
+    /**
+     * Stop listening for devices and stop all readers, returns without waiting for the reader threads
+     * or the journal writer.
+     */
+    public void stop()
+    {
+        List<CardReader> stopping;
+
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            context.unregisterReceiver(usbReceiver);
+            handler.removeCallbacks(metricsDump);
+            handler.removeCallbacks(punchDelivery);
+
+            stopping = new ArrayList<>(readers.values());
+            readers.clear();
+            pendingPermission.clear();
+        }
+
+        for (CardReader reader : stopping) {
+            reader.quit();
+        }
+        // Called on the main thread, the writer finishes the queued records on its own
+        journal.shutdown();
+    }
+
+    /**
+     * @return number of punches dropped because the listeners did not keep up
+     */
+    public long getDroppedPunchCount()
+    {
+        return (punchStream != null) ? punchStream.getDroppedCount() : 0;
+    }
+
+    private int deliverPunches()
+    {
+        List<SIPunch> batch = new ArrayList<>();
+        int count = punchStream.drainTo(batch, MAX_PUNCH_BATCH);
+        if (count > 0) {
+            for (PunchListener listener : punchListeners) {
+                listener.onPunches(batch);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Download the backup memory of every connected station to
+     * backup-<serial>.dat in dir, resuming downloads cut short before.
+     */
+    public synchronized void downloadBackups(File dir)
+    {
+        for (CardReader reader : readers.values()) {
+            if (reader.getSerialNo() != 0) {
+                reader.requestBackupDownload(new File(dir, "backup-" + reader.getSerialNo() + ".dat"));
+            }
+        }
+    }
+
+    /**
+     * @return number of devices currently handled by a reader
+     */
+    public synchronized int getReaderCount()
+    {
+        return readers.size();
+    }
+
+    /**
+     * @return the last readout of a card, from this run or from the journal, null if none
+     */
+    public CardEntry getLastReadout(long cardId)
+    {
+        ReadoutJournal.Record record;
+        synchronized (readouts) {
+            record = readouts.get(cardId);
+        }
+
+        CardEntry entry = new CardEntry();
+        if (record == null || !parser.parse(record.format, record.data, entry)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return number of cards with a journaled readout
+     */
+    public int getReadoutCount()
+    {
+        synchronized (readouts) {
+            return readouts.size();
+        }
+    }
+
+    /**
+     * @return the last readout of a card with its raw data, null if none
+     */
+    ReadoutJournal.Record getCachedReadout(long cardId)
+    {
+        synchronized (readouts) {
+            return readouts.get(cardId);
+        }
+    }
+
+    PartialReadouts getPartialReadouts()
+    {
+        return partials;
+    }
+
+    /**
+     * Called by a reader on its own thread for every successful readout.
+     */
+    void onReadout(CardReader reader, byte format, byte[] data, CardEntry entry)
+    {
+        journal.append(reader.getSerialNo(), entry.cardId, format, data);
+        synchronized (readouts) {
+            readouts.put(entry.cardId, new ReadoutJournal.Record(System.currentTimeMillis(), reader.getSerialNo(), entry.cardId, format, data));
+        }
+    }
+
+    /**
+     * @return metrics of the station with the given serial, or null if it is not connected
+     */
+    public synchronized SIMetrics getMetrics(long serialNo)
+    {
+        for (CardReader reader : readers.values()) {
+            if (reader.getSerialNo() == serialNo) {
+                return reader.getMetrics();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return metrics of all connected stations, keyed by station serial
+     */
+    public synchronized Map<Long, SIMetrics> getMetrics()
+    {
+        Map<Long, SIMetrics> result = new HashMap<>();
+        for (CardReader reader : readers.values()) {
+            SIMetrics metrics = reader.getMetrics();
+            if (metrics != null) {
+                result.put(reader.getSerialNo(), metrics);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write the metrics of all connected stations to the log.
+     */
+    public void dumpMetrics()
+    {
+        for (Map.Entry<Long, SIMetrics> entry : getMetrics().entrySet()) {
+            Log.i(TAG, "Station " + entry.getKey() + " metrics: " + entry.getValue().dump());
+        }
+    }
+
+    private synchronized void probe()
+    {
+        HashMap<String, UsbDevice> usbDevices = manager.getDeviceList();
+        if (usbDevices == null) {
+            return;
+        }
+
+        for (Map.Entry<String, UsbDevice> entry : usbDevices.entrySet()) {
+            UsbDevice device = entry.getValue();
+            String name = device.getDeviceName();
+
+            if (!running || readers.containsKey(name) || pendingPermission.contains(name)) {
+                continue;
+            }
+            if (!UsbSerialDevice.isSupported(device)) {
+                continue;
+            }
+
+            if (manager.hasPermission(device)) {
+                startReader(device);
+            }
+            else {
+                // There is a supported device connected - request permission to access it.
+                Log.d(TAG, "Found USB device " + name + ", waiting for permissions");
+                pendingPermission.add(name);
+                PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, new Intent(UsbBroadcastReceiver.USB_PERMISSION), 0);
+                manager.requestPermission(device, pendingIntent);
+            }
+        }
+    }
+
+    private void onDetached(UsbDevice device)
+    {
+        CardReader reader;
+
+        synchronized (this) {
+            pendingPermission.remove(device.getDeviceName());
+            reader = readers.remove(device.getDeviceName());
+        }
+
+        if (reader != null) {
+            // Cancels any readout in progress, the reader closes the port on its own thread
+            reader.quit();
+        }
+    }
+
+    private synchronized void onPermissionResult(UsbDevice device, boolean granted)
+    {
+        pendingPermission.remove(device.getDeviceName());
+        if (granted && running && !readers.containsKey(device.getDeviceName())) {
+            startReader(device);
+        }
+    }
+
+    private void startReader(UsbDevice device)
+    {
+        Log.d(TAG, "Starting reader for USB device " + device.getDeviceName());
+        CardReader reader = new CardReader(context, manager, device, parser, profiles, this);
+        reader.setPipelineDepth(pipelineDepth);
+        reader.setProgressiveEvents(progressive);
+        reader.setHighSpeed(highSpeed);
+        reader.setPunchStream(punchStream);
+        readers.put(device.getDeviceName(), reader);
+        reader.start();
+    }
+
+    /**
+     * Called by a reader on its own thread when it stops, so the device is
+     * probed again when attached the next time.
+     */
+    synchronized void onReaderStopped(CardReader reader)
+    {
+        String name = reader.getDevice().getDeviceName();
+        if (readers.get(name) == reader) {
+            readers.remove(name);
+        }
+    }
+}
@@ -12,10 +12,12 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.view.View;
 import android.widget.TextView;
 
 import java.util.Calendar;
+import java.util.List;
 
 /**
  * An example full-screen activity that shows and hides the system UI (i.e.
@@ -79,46 +81,78 @@ public class FullscreenActivity extends AppCompatActivity {
         @Override
         public void onReceive(Context context, Intent intent) {
             CardReader.Event event = (CardReader.Event)intent.getSerializableExtra("Event");
+            // Several stations may be connected, show the one the event came from
+            activity.deviceId = intent.getLongExtra("Serial", 0);
             switch(event) {
                 case DeviceDetected:
-                    activity.deviceId = intent.getLongExtra("Serial", 0);
-                    activity.mStatusView.setText("Device (" + activity.deviceId + ") online");
+                    activity.mStatusView.setText("Device (" + activity.deviceId + ") online at " + intent.getIntExtra("BaudRate", 0) + " baud");
                     break;
                 case ReadStarted:
                     activity.mPunchesView.setText("");
                     activity.mContentView.setText("");
                     activity.mStatusView.setText("Device (" + activity.deviceId + ") reading card " + intent.getLongExtra("CardId", 0) + "...");
                     break;
+                case ReadHeader:
+                    activity.showTime((CardEntry)intent.getParcelableExtra("Entry"));
+                    break;
+                case ReadPunches:
+                    // Batches arrive in punch order while the rest of the card is read
+                    CardEntry batch = (CardEntry)intent.getParcelableExtra("Entry");
+                    activity.mPunchesView.append(punchCodes(batch, intent.getIntExtra("FirstPunch", 0)));
+                    break;
                 case ReadCanceled:
                     activity.mStatusView.setText("Device (" + activity.deviceId + ") online");
                     break;
                 case Readout:
-                    CardReader.CardEntry cardEntry = (CardReader.CardEntry)intent.getParcelableExtra("Entry");
-                    if (cardEntry.startTime != 0) {
-                        long timeDiff = cardEntry.finishTime - cardEntry.startTime;
-                        long minutes = timeDiff / (60*1000);
-                        long seconds = (timeDiff - minutes * 60 * 1000) / 1000;
-                        long hundreds = (timeDiff - minutes * 60 * 1000 - seconds * 1000);
-                        activity.mContentView.setText(String.format("%d:%02d.%02d", minutes, seconds, hundreds));
-                        StringBuilder tmpPunches = new StringBuilder();
-                        for (int i=0; i<cardEntry.punches.size(); i++) {
-                            if (i > 0)
-                                tmpPunches.append(", ");
-                            tmpPunches.append(cardEntry.punches.get(i).code);
-                        }
-                        activity.mPunchesView.setText(tmpPunches);
+                    SIMetrics metrics = activity.cardReaderManager.getMetrics(activity.deviceId);
+                    if (metrics != null) {
+                        metrics.record(SIMetrics.Phase.Delivery, SystemClock.elapsedRealtimeNanos() - intent.getLongExtra("Timestamp", 0));
                     }
-                    else {
-                        activity.mContentView.setText("Ingen startstämpel");
+                    CardEntry cardEntry = (CardEntry)intent.getParcelableExtra("Entry");
+                    activity.showTime(cardEntry);
+                    if (cardEntry.startTime != 0) {
+                        activity.mPunchesView.setText(punchCodes(cardEntry, 0));
                     }
                     activity.mStatusView.setText(String.format("Device (%d) card %d read", activity.deviceId, cardEntry.cardId));
                     break;
+                case BackupProgress:
+                case BackupDone:
+                    activity.mStatusView.setText(String.format("Device (%d) backup %s, %d records (%d/s)", activity.deviceId,
+                            (event == CardReader.Event.BackupProgress) ? "downloading" : (intent.getBooleanExtra("Complete", false) ? "done" : "incomplete"),
+                            intent.getLongExtra("Records", 0), intent.getLongExtra("RecordsPerSecond", 0)));
+                    break;
+                case DeviceLost:
+                    activity.mStatusView.setText("Device (" + activity.deviceId + ") offline");
+                    break;
             }
         }
     }
+    private static String punchCodes(CardEntry cardEntry, int firstPunch) {
+        StringBuilder tmpPunches = new StringBuilder();
+        for (int i=0; i<cardEntry.punchCount(); i++) {
+            if (firstPunch + i > 0)
+                tmpPunches.append(", ");
+            tmpPunches.append(cardEntry.punchCode(i));
+        }
+        return tmpPunches.toString();
+    }
+
+    private void showTime(CardEntry cardEntry) {
+        if (cardEntry.startTime != 0) {
+            long timeDiff = cardEntry.finishTime - cardEntry.startTime;
+            long minutes = timeDiff / (60*1000);
+            long seconds = (timeDiff - minutes * 60 * 1000) / 1000;
+            long hundreds = (timeDiff - minutes * 60 * 1000 - seconds * 1000);
+            mContentView.setText(String.format("%d:%02d.%02d", minutes, seconds, hundreds));
+        }
+        else {
+            mContentView.setText("Ingen startstämpel");
+        }
+    }
+
     private CardReaderBroadcastReceiver mMessageReceiver = new CardReaderBroadcastReceiver(this);
 
-    private CardReader cardReader;
+    private CardReaderManager cardReaderManager;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -153,14 +187,32 @@ public class FullscreenActivity extends AppCompatActivity {
             }
         });
 
-        // Create SIReader
-        cardReader = new CardReader(this, Calendar.getInstance());
-        cardReader.execute();
+        // Start a card reader for every connected station
+        cardReaderManager = new CardReaderManager(this, Calendar.getInstance());
+        cardReaderManager.setProgressiveEvents(true);
+        // High speed mode stays off, switching rewrites the baud rate in the station's own configuration
+        cardReaderManager.setPunchStreaming(true);
+        cardReaderManager.addPunchListener(new CardReaderManager.PunchListener() {
+            @Override
+            public void onPunches(List<SIPunch> punches) {
+                SIPunch last = punches.get(punches.size() - 1);
+                mStatusView.setText(String.format("Device (%d) %d punches, last card %d at %d", last.serialNo, punches.size(), last.cardId, last.code));
+            }
+        });
+        cardReaderManager.start();
 
         // Set up local broadcast receiver
         LocalBroadcastManager.getInstance(this).registerReceiver(mMessageReceiver, new IntentFilter(CardReader.EVENT_IDENTIFIER));
     }
 
+    @Override
+    protected void onDestroy() {
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mMessageReceiver);
+        cardReaderManager.stop();
+
+        super.onDestroy();
+    }
+
     @Override
     protected void onPostCreate(Bundle savedInstanceState) {
         super.onPostCreate(savedInstanceState);
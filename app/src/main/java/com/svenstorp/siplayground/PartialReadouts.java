@@ -0,0 +1,119 @@
+package com.svenstorp.siplayground;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Blocks read from cards that were pulled out before the readout was done,
+ * kept for a short while so a reinserted card only needs the missing blocks.
+ *
+ * Entries are keyed by card id and hold the data as assembled for
+ * CardParser, block 0 first. A kept readout is only resumed if block 0 of the
+ * reinserted card has the same fingerprint (card series and number, punch
+ * count and times), i.e. the card was not punched in between. Shared by all
+ * readers, so a card may be finished on another station.
+ */
+class PartialReadouts {
+    static final int DEFAULT_MAX_ENTRIES = 16;
+    static final long DEFAULT_MAX_AGE = 60000;
+
+    static class Partial {
+        final byte format;
+        final byte[] data;
+        // Blocks following block 0 that are already in data
+        final boolean[] received;
+        final long timestamp;
+
+        Partial(byte format, byte[] data, boolean[] received, long timestamp)
+        {
+            this.format = format;
+            this.data = data;
+            this.received = received;
+            this.timestamp = timestamp;
+        }
+
+        int receivedCount()
+        {
+            int count = 0;
+            for (boolean block : received) {
+                if (block) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxAge;
+    private final LinkedHashMap<Long, Partial> partials;
+
+    PartialReadouts()
+    {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param maxEntries max number of cards kept, the oldest is dropped first
+     * @param maxAge max age in ms of a kept readout
+     */
+    PartialReadouts(final int maxEntries, long maxAge)
+    {
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAge;
+        this.partials = new LinkedHashMap<Long, Partial>(maxEntries + 1) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Partial> eldest) {
+                return size() > PartialReadouts.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Keep the blocks read so far, replacing what was kept for the card before.
+     * Nothing is kept if no block after block 0 was read.
+     */
+    synchronized void put(long cardId, byte format, byte[] data, boolean[] received)
+    {
+        Partial partial = new Partial(format, data.clone(), received.clone(), System.currentTimeMillis());
+        partials.remove(cardId);
+        if (partial.receivedCount() > 0) {
+            partials.put(cardId, partial);
+        }
+    }
+
+    /**
+     * Remove and return what was kept for a card, if it was kept for the same
+     * format and block0 still has the same fingerprint.
+     *
+     * @param block0 block 0 of the inserted card
+     * @return the partial readout, or null if there is none to resume
+     */
+    synchronized Partial take(long cardId, byte format, byte[] block0)
+    {
+        evictExpired(System.currentTimeMillis());
+
+        Partial partial = partials.remove(cardId);
+        if (partial == null || partial.format != format || !CardParser.sameFingerprint(format, partial.data, block0)) {
+            return null;
+        }
+        return partial;
+    }
+
+    synchronized int size()
+    {
+        evictExpired(System.currentTimeMillis());
+        return partials.size();
+    }
+
+    private void evictExpired(long now)
+    {
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().timestamp > maxAge) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.svenstorp.siplayground;
+
+/**
+ * Parses punches as soon as all blocks up to them have arrived and hands
+ * them on in punch order.
+ *
+ * Blocks are counted by their index in the read order of the card layout,
+ * block 0 being there from the beginning. As pipelined replies may arrive
+ * in any order, punches are only parsed from the blocks read so far without
+ * a gap after block 0.
+ */
+class PunchStreamer implements SIBlockReader.Listener {
+    interface Sink {
+        /**
+         * @param batch the punches newly parsed
+         * @param firstPunch index on the card of the first punch in batch
+         */
+        void onPunches(CardEntry batch, int firstPunch);
+    }
+
+    private static final int BLOCK_SIZE = 128;
+    private static final int PUNCH_SIZE = 4;
+
+    private final CardParser parser;
+    private final byte[] data;
+    private final int punchOffset;
+    private final int punchCount;
+    private final boolean[] arrived;
+    private final long cardId;
+    private final Sink sink;
+    // Blocks of data available from the start, block 0 is there from the beginning
+    private int available = 1;
+    private int sent = 0;
+
+    /**
+     * @param data card data as assembled for CardParser, filled in as blocks arrive
+     * @param blockCount number of blocks read after block 0
+     */
+    PunchStreamer(CardParser parser, byte[] data, CardLayout layout, int punchCount, int blockCount, long cardId, Sink sink)
+    {
+        this.parser = parser;
+        this.data = data;
+        this.punchOffset = layout.punchOffset;
+        this.punchCount = punchCount;
+        this.arrived = new boolean[blockCount];
+        this.cardId = cardId;
+        this.sink = sink;
+    }
+
+    @Override
+    public void onBlock(int index)
+    {
+        arrived[index] = true;
+        while (available - 1 < arrived.length && arrived[available - 1]) {
+            available++;
+        }
+        this.sendAvailable();
+    }
+
+    /**
+     * Hand on the punches not sent yet that lie in the available blocks.
+     */
+    void sendAvailable()
+    {
+        int parsable = Math.min(punchCount, Math.max(0, (available * BLOCK_SIZE - punchOffset) / PUNCH_SIZE));
+        if (parsable <= sent) {
+            return;
+        }
+
+        CardEntry batch = new CardEntry(parsable - sent);
+        batch.cardId = cardId;
+        parser.parsePunches(data, punchOffset, sent, parsable, batch);
+        sink.onPunches(batch, sent);
+        sent = parsable;
+    }
+}
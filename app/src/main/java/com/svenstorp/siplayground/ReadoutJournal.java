@@ -0,0 +1,359 @@
+package com.svenstorp.siplayground;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of successful readouts, so they survive the process.
+ *
+ * Records hold the raw card data as passed to CardParser, together with the
+ * station serial, card id and time of readout. Appending only queues the
+ * record, a writer thread writes everything queued in one go and forces it
+ * to disk once per batch (group commit). On open the existing journal is
+ * replayed through a memory mapping, and a torn record at the end, left by a
+ * crash during a write, is cut off (and saved to a .bad file next to it).
+ *
+ * File layout, big endian: magic, version, then per record
+ * [body length][crc32 of body][body], body being
+ * [timestamp][station serial][card id][format][card data].
+ */
+class ReadoutJournal {
+    private static final int MAGIC = 0x53494a4c; // "SIJL"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int BODY_HEADER_SIZE = 8 + 8 + 8 + 1;
+    private static final int MAX_DATA_SIZE = 64 * 1024;
+
+    static class Record {
+        final long timestamp;
+        final long serialNo;
+        final long cardId;
+        final byte format;
+        final byte[] data;
+
+        Record(long timestamp, long serialNo, long cardId, byte format, byte[] data)
+        {
+            this.timestamp = timestamp;
+            this.serialNo = serialNo;
+            this.cardId = cardId;
+            this.format = format;
+            this.data = data;
+        }
+    }
+
+    interface Listener {
+        void onRecord(Record record);
+    }
+
+    private final String TAG = ReadoutJournal.class.getSimpleName();
+    private final File file;
+    private final ArrayDeque<Record> pending = new ArrayDeque<>();
+    private final ArrayDeque<Record> batch = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(16 * 1024);
+    private Thread writer;
+    private boolean closed;
+
+    private volatile long recordCount;
+    private volatile long commitCount;
+
+    ReadoutJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Start the writer thread, which first replays the journal to listener
+     * (may be null) and then writes queued records. Records appended before
+     * the replay is done are written after it.
+     */
+    synchronized void open(final Listener listener)
+    {
+        if (writer != null) {
+            return;
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    openChannel(listener);
+                    writeLoop();
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Readout journal failed: " + e.getMessage());
+                }
+                finally {
+                    synchronized (ReadoutJournal.this) {
+                        closed = true;
+                        pending.clear();
+                    }
+                    closeChannel();
+                }
+            }
+        }, TAG);
+        writer.start();
+    }
+
+    /**
+     * Queue a readout for writing, never blocks on disk I/O.
+     *
+     * @return false if the journal is closed
+     */
+    boolean append(long serialNo, long cardId, byte format, byte[] data)
+    {
+        if (data.length > MAX_DATA_SIZE) {
+            return false;
+        }
+
+        Record record = new Record(System.currentTimeMillis(), serialNo, cardId, format, data.clone());
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            pending.addLast(record);
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Let the writer thread write what is queued and stop, without waiting
+     * for it. Records appended later are refused.
+     */
+    void shutdown()
+    {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Write what is queued and wait for the writer thread to stop.
+     */
+    void close()
+    {
+        Thread thread;
+
+        this.shutdown();
+        synchronized (this) {
+            thread = writer;
+        }
+
+        if (thread != null) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return number of records replayed or written since open
+     */
+    long getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * @return number of forced writes, each holding one or more records
+     */
+    long getCommitCount()
+    {
+        return commitCount;
+    }
+
+    private void openChannel(Listener listener) throws IOException
+    {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+
+        long size = channel.size();
+        long end = FILE_HEADER_SIZE;
+        if (size >= FILE_HEADER_SIZE && readHeader()) {
+            end = replay(size, listener);
+            if (end < size) {
+                Log.w(TAG, "Cutting off " + (size - end) + " bytes of torn or corrupt records");
+                this.saveCutOff(end, size);
+                channel.truncate(end);
+            }
+        }
+        else {
+            if (size > 0) {
+                Log.w(TAG, "Unknown journal format, starting a new journal");
+            }
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        channel.position(end);
+    }
+
+    /**
+     * Keep the bytes about to be cut off next to the journal, a corrupt
+     * record in the middle would otherwise take the valid ones after it along.
+     */
+    private void saveCutOff(long from, long to) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file.getPath() + ".bad", true);
+        try {
+            channel.transferTo(from, to - from, out.getChannel());
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private boolean readHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        return header.getInt() == MAGIC && header.getInt() == VERSION;
+    }
+
+    /**
+     * @return offset of the end of the last valid record
+     */
+    private long replay(long size, Listener listener) throws IOException
+    {
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        map.position(FILE_HEADER_SIZE);
+
+        while (map.remaining() >= RECORD_HEADER_SIZE) {
+            int start = map.position();
+            int length = map.getInt();
+            int expectedCrc = map.getInt();
+            if (length < BODY_HEADER_SIZE || length > BODY_HEADER_SIZE + MAX_DATA_SIZE || length > map.remaining()) {
+                return start;
+            }
+
+            byte[] body = new byte[length];
+            map.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int)crc.getValue() != expectedCrc) {
+                return start;
+            }
+
+            ByteBuffer in = ByteBuffer.wrap(body);
+            long timestamp = in.getLong();
+            long serialNo = in.getLong();
+            long cardId = in.getLong();
+            byte format = in.get();
+            byte[] data = new byte[in.remaining()];
+            in.get(data);
+
+            recordCount++;
+            if (listener != null) {
+                listener.onRecord(new Record(timestamp, serialNo, cardId, format, data));
+            }
+        }
+
+        return map.position();
+    }
+
+    private void writeLoop() throws IOException
+    {
+        while (true) {
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                // Everything queued while the last batch was written goes in this one
+                batch.addAll(pending);
+                pending.clear();
+            }
+
+            writeBuffer.clear();
+            Record record;
+            while ((record = batch.pollFirst()) != null) {
+                int size = RECORD_HEADER_SIZE + BODY_HEADER_SIZE + record.data.length;
+                if (size > writeBuffer.remaining()) {
+                    // Write out the records already encoded before the buffer may be replaced
+                    this.flush();
+                    this.ensureCapacity(size);
+                }
+                encode(record);
+            }
+            this.flush();
+            channel.force(false);
+            commitCount++;
+        }
+    }
+
+    private void flush() throws IOException
+    {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Grow the write buffer to hold a record of size bytes, only while it is empty.
+     */
+    private void ensureCapacity(int size)
+    {
+        if (size > writeBuffer.capacity()) {
+            writeBuffer = ByteBuffer.allocate(size);
+        }
+    }
+
+    private void encode(Record record)
+    {
+        int start = writeBuffer.position();
+        int length = BODY_HEADER_SIZE + record.data.length;
+
+        writeBuffer.putInt(length);
+        writeBuffer.putInt(0);
+        writeBuffer.putLong(record.timestamp);
+        writeBuffer.putLong(record.serialNo);
+        writeBuffer.putLong(record.cardId);
+        writeBuffer.put(record.format);
+        writeBuffer.put(record.data);
+
+        crc.reset();
+        crc.update(writeBuffer.array(), start + RECORD_HEADER_SIZE, length);
+        writeBuffer.putInt(start + 4, (int)crc.getValue());
+        recordCount++;
+    }
+
+    private void closeChannel()
+    {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Failed to close readout journal: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+}
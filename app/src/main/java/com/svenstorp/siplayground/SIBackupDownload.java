@@ -0,0 +1,363 @@
+package com.svenstorp.siplayground;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Downloads the backup memory of a station, the punch records it has
+ * stored, to a file.
+ *
+ * Memory is read in chunks of 128 bytes with several requests kept in
+ * flight, replies are matched by the address they carry. Chunks are written
+ * to the file in address order as soon as all chunks before them are there,
+ * so the file always ends at the last confirmed address and a download cut
+ * short by a disconnect resumes from there on the next call.
+ *
+ * The download can also be driven one reply at a time with begin, step and
+ * close, e.g. as a bulk task of SICommandScheduler.
+ *
+ * Stations in extended mode are read with 0x81 (GetBackupData, three byte
+ * address and byte count), others with the base protocol 0x74 (two byte
+ * address, always 128 bytes, DLE stuffed).
+ *
+ * File layout, big endian: magic, version, station serial, start address,
+ * extended mode flag, then the raw backup memory from the start address.
+ */
+class SIBackupDownload {
+    interface Listener {
+        void onProgress(long confirmedAddress, long records, long recordsPerSecond);
+    }
+
+    static final int CHUNK_SIZE = 128;
+    static final int EXTENDED_RECORD_SIZE = 8;
+    static final int LEGACY_RECORD_SIZE = 6;
+    private static final int MAGIC = 0x5349424b; // "SIBK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 1;
+    private static final byte EXTENDED_COMMAND = (byte)0x81;
+    private static final byte LEGACY_COMMAND = (byte)0x74;
+    static final int DEFAULT_PIPELINE_DEPTH = 4;
+    private static final int CHUNK_TIMEOUT = 5000;
+    // Failed replies in a row before giving up, any confirmed chunk resets it
+    private static final int MAX_RETRIES = 8;
+    // Chunks written between forcing the file to disk
+    private static final int FORCE_INTERVAL = 16;
+    private static final int SI_DLE = 0x10;
+
+    private final String TAG = SIBackupDownload.class.getSimpleName();
+    private final SIProtocol proto;
+    private final boolean extendedMode;
+    private final long serialNo;
+    private final File file;
+    private final byte command;
+    private final int recordSize;
+
+    private final Map<Long, byte[]> received = new HashMap<>();
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+    private FileChannel channel;
+    private Listener listener;
+    private long start;
+    private long end;
+    private long next;
+    private long confirmed;
+    private long startConfirmed;
+    private long startTime;
+    private int retries;
+    private int unforced;
+    private boolean failed;
+    private long records;
+    private long recordsPerSecond;
+
+    /**
+     * @param extendedMode address mode of the station, see SIReader.Info
+     * @param serialNo serial of the station, a file from another station is not resumed
+     */
+    SIBackupDownload(SIProtocol proto, boolean extendedMode, long serialNo, File file)
+    {
+        this.proto = proto;
+        this.extendedMode = extendedMode;
+        this.serialNo = serialNo;
+        this.file = file;
+        this.command = extendedMode ? EXTENDED_COMMAND : LEGACY_COMMAND;
+        this.recordSize = extendedMode ? EXTENDED_RECORD_SIZE : LEGACY_RECORD_SIZE;
+    }
+
+    /**
+     * Download memory from start up to end, resuming from the file if it
+     * holds an earlier download from the same station and start address.
+     *
+     * @param listener told about every confirmed chunk, may be null
+     * @return true if everything up to end is in the file, false if the
+     * station stopped answering, call again to resume
+     */
+    boolean download(long start, long end, Listener listener) throws IOException
+    {
+        this.begin(start, end, listener);
+        try {
+            while (this.step()) {
+                // Until done or given up
+            }
+        }
+        finally {
+            this.close();
+        }
+        return this.isComplete();
+    }
+
+    /**
+     * Requests kept in flight, also the number of frames a step may leave
+     * unanswered when it returns. Must be set before begin.
+     */
+    void setPipelineDepth(int depth)
+    {
+        this.pipelineDepth = Math.max(1, depth);
+    }
+
+    /**
+     * Open the file and start a download to be driven by step, see download.
+     */
+    void begin(long start, long end, Listener listener) throws IOException
+    {
+        if (!extendedMode && end > 0x10000) {
+            throw new IllegalArgumentException("Base protocol addresses are two bytes");
+        }
+
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.start = start;
+        this.end = end;
+        this.listener = listener;
+        this.confirmed = this.openFile(channel, start);
+        if (confirmed > start) {
+            Log.d(TAG, "Resuming backup download of " + serialNo + " at " + confirmed);
+        }
+
+        received.clear();
+        next = confirmed;
+        startConfirmed = confirmed;
+        startTime = System.nanoTime();
+        retries = 0;
+        unforced = 0;
+        failed = false;
+        records = (confirmed - start) / recordSize;
+    }
+
+    /**
+     * Send requests to fill the window and handle one reply, so whoever
+     * drives the download can do other work on the link in between.
+     *
+     * @return true while there is more to do
+     */
+    boolean step() throws IOException
+    {
+        if (failed || confirmed >= end) {
+            return false;
+        }
+
+        // Keep the window of unconfirmed chunks filled, in one USB transfer
+        proto.beginBatch();
+        while (next < end && next < confirmed + pipelineDepth * CHUNK_SIZE) {
+            this.request(next, (int)Math.min(CHUNK_SIZE, end - next));
+            next += CHUNK_SIZE;
+        }
+        proto.endBatch();
+
+        byte[] reply = proto.readMsg(proto.replyTimeout(command, CHUNK_TIMEOUT), command);
+        long address = this.replyAddress(reply);
+        if (address >= 0 && (address < confirmed || received.containsKey(address))) {
+            // Late reply to a chunk that was asked for again
+            return true;
+        }
+        if (address < 0 || address >= next || (address - start) % CHUNK_SIZE != 0
+                || this.replyDataLength(reply) < Math.min(CHUNK_SIZE, end - address)) {
+            // Lost, NAKed, corrupted or short, ask again for everything unconfirmed
+            if (retries++ == MAX_RETRIES) {
+                Log.d(TAG, "Station stopped answering at " + confirmed);
+                failed = true;
+                return false;
+            }
+            proto.beginBatch();
+            for (long a = confirmed; a < next; a += CHUNK_SIZE) {
+                if (!received.containsKey(a)) {
+                    this.request(a, (int)Math.min(CHUNK_SIZE, end - a));
+                }
+            }
+            proto.endBatch();
+            return true;
+        }
+        received.put(address, this.replyData(reply, (int)Math.min(CHUNK_SIZE, end - address)));
+
+        byte[] data;
+        while ((data = received.remove(confirmed)) != null) {
+            channel.write(ByteBuffer.wrap(data));
+            confirmed += data.length;
+            records = (confirmed - start) / recordSize;
+            retries = 0;
+            if (++unforced == FORCE_INTERVAL) {
+                channel.force(false);
+                unforced = 0;
+            }
+
+            long nanos = Math.max(1, System.nanoTime() - startTime);
+            recordsPerSecond = ((confirmed - startConfirmed) / recordSize) * 1000000000L / nanos;
+            if (listener != null) {
+                listener.onProgress(confirmed, records, recordsPerSecond);
+            }
+        }
+
+        if (confirmed >= end) {
+            Log.d(TAG, "Backup of " + serialNo + " downloaded, " + records + " records, " + recordsPerSecond + " records/s");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Force what was written to disk and close the file, the download can be
+     * resumed later with a new begin.
+     */
+    void close() throws IOException
+    {
+        if (channel != null) {
+            try {
+                channel.force(false);
+            }
+            finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * @return true if everything up to end is in the file
+     */
+    boolean isComplete()
+    {
+        return confirmed >= end;
+    }
+
+    /**
+     * @return address up to which the memory is in the file
+     */
+    long getConfirmedAddress()
+    {
+        return confirmed;
+    }
+
+    /**
+     * @return number of records in the file
+     */
+    long getRecordCount()
+    {
+        return records;
+    }
+
+    /**
+     * @return records per second downloaded since begin
+     */
+    long getRecordsPerSecond()
+    {
+        return recordsPerSecond;
+    }
+
+    /**
+     * Check the file header, start a new file if it is not a download from
+     * the same station, start address and mode.
+     *
+     * @return confirmed address
+     */
+    private long openFile(FileChannel channel, long start) throws IOException
+    {
+        long size = channel.size();
+        if (size >= HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() == MAGIC && header.getInt() == VERSION && header.getLong() == serialNo
+                    && header.getLong() == start && (header.get() != 0) == extendedMode) {
+                channel.position(size);
+                return start + size - HEADER_SIZE;
+            }
+            Log.d(TAG, "Backup file from another download, starting over");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(serialNo).putLong(start).put((byte)(extendedMode ? 1 : 0)).flip();
+        channel.truncate(0);
+        channel.write(header, 0);
+        channel.position(HEADER_SIZE);
+        return start;
+    }
+
+    private void request(long address, int count)
+    {
+        if (extendedMode) {
+            proto.writeMsg(command, new byte[]{(byte)(address >> 16), (byte)(address >> 8), (byte)address, (byte)count}, true);
+        }
+        else {
+            proto.writeMsg(command, new byte[]{(byte)(address >> 8), (byte)address}, false);
+        }
+    }
+
+    /**
+     * @return address of a backup data reply, -1 for anything else
+     */
+    private long replyAddress(byte[] reply)
+    {
+        if (reply == null || reply.length < 2 || reply[1] != command) {
+            return -1;
+        }
+        if (extendedMode) {
+            // STX, cmd, len, CN1, CN0, ADR2, ADR1, ADR0, data, crc, ETX
+            if (reply.length < 11) {
+                return -1;
+            }
+            return ((reply[5] & 0xff) << 16) | ((reply[6] & 0xff) << 8) | (reply[7] & 0xff);
+        }
+
+        // STX, cmd, CN, ADR1, ADR0, 128 bytes data, ETX after unstuffing
+        byte[] frame = unstuff(reply);
+        if (frame.length != 5 + CHUNK_SIZE + 1) {
+            return -1;
+        }
+        return ((frame[3] & 0xff) << 8) | (frame[4] & 0xff);
+    }
+
+    private int replyDataLength(byte[] reply)
+    {
+        return extendedMode ? reply.length - 11 : CHUNK_SIZE;
+    }
+
+    private byte[] replyData(byte[] reply, int count)
+    {
+        if (extendedMode) {
+            return Arrays.copyOfRange(reply, 8, 8 + count);
+        }
+        return Arrays.copyOfRange(unstuff(reply), 5, 5 + count);
+    }
+
+    /**
+     * Remove the DLE bytes the base protocol puts before every byte below 0x20.
+     */
+    static byte[] unstuff(byte[] frame)
+    {
+        byte[] tmp = new byte[frame.length];
+        int length = 0;
+
+        for (int i=0; i<frame.length; i++) {
+            if (frame[i] == SI_DLE && i > 1 && i + 1 < frame.length - 1) {
+                i++;
+            }
+            tmp[length++] = frame[i];
+        }
+        return (length == frame.length) ? frame : Arrays.copyOf(tmp, length);
+    }
+}
@@ -0,0 +1,153 @@
+package com.svenstorp.siplayground;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Reads 128 byte card blocks with 0xe1 (SI-Card 6) or 0xef (SI-Card 8 and
+ * later) requests, optionally with several requests in flight.
+ */
+class SIBlockReader {
+    interface Listener {
+        void onBlock(int index);
+    }
+
+    static final int BLOCK_SIZE = 128;
+    // STX, cmd, len, CN1, CN0, block number, then the data, crc and ETX
+    static final int BLOCK_REPLY_SIZE = BLOCK_SIZE + 6 + 3;
+    private static final int BLOCK_TIMEOUT = 5000;
+    // Requests per block after the first one, and for all blocks of one readout
+    static final int BLOCK_RETRIES = 3;
+    static final int READ_RETRY_BUDGET = 8;
+
+    private final String TAG = SIBlockReader.class.getSimpleName();
+    private final SIProtocol proto;
+    private final int pipelineDepth;
+
+    /**
+     * @param pipelineDepth number of block requests kept in flight, 1 gives plain stop-and-wait
+     */
+    SIBlockReader(SIProtocol proto, int pipelineDepth)
+    {
+        this.proto = proto;
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+    }
+
+    /**
+     * Read card blocks with the given command, blocks[i] is stored at dest[destOffset + i*128].
+     *
+     * With a pipeline depth above one, that many requests are kept in flight.
+     * Replies are matched to the requests by block number, so they may come
+     * back in any order. Once a request fails no more are sent, the replies
+     * already on their way are collected and the blocks still missing are
+     * read one at a time.
+     *
+     * Blocks read one at a time are requested again on a timeout, NAK, crc
+     * error or malformed reply, at most BLOCK_RETRIES times each and
+     * READ_RETRY_BUDGET times in all. Blocks already stored are kept.
+     *
+     * @param received blocks already in dest, which are not read again, updated as blocks are stored
+     * @param listener told about every block stored, may be null
+     * @return true if all needed blocks were read
+     */
+    boolean read(byte command, byte[] blocks, byte[] dest, int destOffset, boolean[] received, Listener listener)
+    {
+        if (pipelineDepth > 1) {
+            ArrayDeque<SIRequest> inFlight = new ArrayDeque<>();
+            int next = 0;
+            boolean failed = false;
+
+            while (true) {
+                // Requests filling the window go out in one USB transfer
+                proto.beginBatch();
+                while (!failed && next < blocks.length && inFlight.size() < pipelineDepth) {
+                    if (!received[next]) {
+                        inFlight.addLast(this.request(command, blocks[next]));
+                    }
+                    next++;
+                }
+                proto.endBatch();
+                SIRequest request = inFlight.pollFirst();
+                if (request == null) {
+                    break;
+                }
+
+                byte[] reply = awaitReply(request);
+                if (reply == null) {
+                    if (!failed) {
+                        Log.d(TAG, "Block " + request.getBlockNo() + " failed with " + request.getStatus() + ", falling back to stop-and-wait");
+                    }
+                    failed = true;
+                    continue;
+                }
+                int index = blockIndex(blocks, reply[SIRequest.BLOCK_NO_OFFSET]);
+                System.arraycopy(reply, 6, dest, destOffset + index*BLOCK_SIZE, BLOCK_SIZE);
+                received[index] = true;
+                if (listener != null) {
+                    listener.onBlock(index);
+                }
+            }
+        }
+
+        int budget = READ_RETRY_BUDGET;
+        for (int i=0; i<blocks.length; i++) {
+            if (received[i]) {
+                continue;
+            }
+
+            byte[] reply;
+            int retries = 0;
+            while (true) {
+                SIRequest request = this.request(command, blocks[i]);
+                reply = awaitReply(request);
+                if (reply != null) {
+                    break;
+                }
+                if (request.getStatus() == SIRequest.Status.Canceled || retries == BLOCK_RETRIES || budget == 0) {
+                    return false;
+                }
+                retries++;
+                budget--;
+                proto.getMetrics().count(SIMetrics.Counter.Retries);
+                Log.d(TAG, "Requesting block " + blocks[i] + " again after " + request.getStatus());
+            }
+            System.arraycopy(reply, 6, dest, destOffset + i*BLOCK_SIZE, BLOCK_SIZE);
+            received[i] = true;
+            if (listener != null) {
+                listener.onBlock(i);
+            }
+        }
+
+        return true;
+    }
+
+    private SIRequest request(byte command, byte blockNo)
+    {
+        return proto.request(command, new byte[]{blockNo}, blockNo & 0xff, BLOCK_REPLY_SIZE, BLOCK_TIMEOUT, null);
+    }
+
+    /**
+     * @return the reply, or null if the request failed or the thread was interrupted
+     */
+    static byte[] awaitReply(SIRequest request)
+    {
+        try {
+            return request.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static int blockIndex(byte[] blocks, byte blockNo)
+    {
+        for (int i=0; i<blocks.length; i++) {
+            if (blocks[i] == blockNo) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
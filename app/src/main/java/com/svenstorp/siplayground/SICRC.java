@@ -1,48 +1,130 @@
 package com.svenstorp.siplayground;
 
+import java.nio.ByteBuffer;
+
+/**
+ * SportIdent CRC (polynom 0x8005) using a lookup table.
+ *
+ * The SportIdent algorithm equals a plain CRC-16 of the data with two quirks:
+ * two bytes of data are returned as is, and for an odd number of bytes the
+ * last byte is only shifted half way through the register. Both the static
+ * methods and the incremental {@link #update(byte)} form handle this.
+ */
 class SICRC {
     private static final int POLYNOM = 0x8005;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i=0; i<256; i++) {
+            int crc = i << 8;
+            for (int bit=0; bit<8; bit++) {
+                crc = ((crc & 0x8000) == 0x8000) ? (crc << 1) ^ POLYNOM : (crc << 1);
+            }
+            TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private int crc;
+    private int firstWord;
+    private int lastByte;
+    private int count;
+
+    SICRC()
+    {
+        reset();
+    }
+
+    void reset()
+    {
+        crc = 0;
+        firstWord = 0;
+        lastByte = 0;
+        count = 0;
+    }
+
+    void update(byte b)
+    {
+        // Keep the last byte back, it is treated differently if the count ends up odd
+        if (count > 0) {
+            crc = step(crc, lastByte);
+        }
+        if (count < 2) {
+            firstWord = (firstWord << 8) | (b & 0xff);
+        }
+        lastByte = b & 0xff;
+        count++;
+    }
+
+    void update(byte[] data, int offset, int length)
+    {
+        for (int i=offset; i<offset+length; i++) {
+            update(data[i]);
+        }
+    }
+
+    /**
+     * Update with the remaining bytes of buf, the position of buf is advanced to its limit.
+     */
+    void update(ByteBuffer buf)
+    {
+        while (buf.hasRemaining()) {
+            update(buf.get());
+        }
+    }
+
+    int getValue()
+    {
+        if (count < 2) {
+            return 0;
+        }
+        if (count == 2) {
+            return firstWord;
+        }
+        if ((count & 1) == 1) {
+            return crc ^ (lastByte << 8);
+        }
+        return step(crc, lastByte);
+    }
+
     static int calc(int uiCount, byte[] pucDat)
     {
-        int uiTmp1, uiVal;
-        int pucDatIndex = 0;
+        return calc(pucDat, 0, uiCount);
+    }
 
-        if (uiCount < 2) return 0;
+    static int calc(byte[] data, int offset, int length)
+    {
+        if (length < 2) return 0;
+        if (length == 2) return ((data[offset] & 0xff) << 8) | (data[offset+1] & 0xff);
 
-        uiTmp1 = pucDat[pucDatIndex++];
-        uiTmp1 = (uiTmp1 << 8) + pucDat[pucDatIndex++];
+        int end = offset + (length & ~1);
+        int crc = 0;
+        for (int i=offset; i<end; i++) {
+            crc = step(crc, data[i] & 0xff);
+        }
+        if ((length & 1) == 1) {
+            crc ^= (data[end] & 0xff) << 8;
+        }
+        return crc;
+    }
 
-        if (uiCount == 2) return uiTmp1;
-        for (int iTmp = (uiCount >> 1); iTmp > 0; iTmp--)
-        {
-            if (iTmp > 1) {
-                uiVal = pucDat[pucDatIndex++];
-                uiVal = (uiVal << 8) + pucDat[pucDatIndex++];
-            }
-            else {
-                if ((uiCount & 1) == 1) {
-                    uiVal = pucDat[pucDatIndex];
-                    uiVal <<= 8;
-                }
-                else {
-                    uiVal = 0;
-                }
-            }
+    /**
+     * Calculate crc over the remaining bytes of buf without changing its position.
+     */
+    static int calc(ByteBuffer buf)
+    {
+        if (buf.hasArray()) {
+            return calc(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        }
 
-            for (int uiTmp=0; uiTmp<16; uiTmp++) {
-                if ((uiTmp1 & 0x8000) == 0x8000) {
-                    uiTmp1 <<= 1;
-                    if ((uiVal & 0x8000) == 0x8000) uiTmp1++;
-                    uiTmp1 ^= POLYNOM;
-                }
-                else {
-                    uiTmp1 <<= 1;
-                    if ((uiVal & 0x8000) == 0x8000) uiTmp1++;
-                }
-                uiVal <<= 1;
-            }
+        SICRC tmp = new SICRC();
+        for (int i=buf.position(); i<buf.limit(); i++) {
+            tmp.update(buf.get(i));
         }
+        return tmp.getValue();
+    }
 
-        return (uiTmp1 & 0xffff);
+    private static int step(int crc, int b)
+    {
+        return ((crc << 8) ^ TABLE[((crc >> 8) ^ b) & 0xff]) & 0xffff;
     }
 }
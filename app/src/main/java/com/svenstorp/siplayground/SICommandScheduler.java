@@ -0,0 +1,135 @@
+package com.svenstorp.siplayground;
+
+import java.util.ArrayDeque;
+
+/**
+ * Orders the work done on the link to one station. Tasks are queued in
+ * priority lanes from any thread, but only run by the thread that owns the
+ * link (the CardReader thread), one step at a time.
+ *
+ * A step is at most one request/reply exchange. Before every step the
+ * highest lane with work is picked, so a bulk transfer is preempted at the
+ * next frame boundary as soon as a readout is queued. The readout then waits
+ * for at most the one bulk frame still in flight.
+ *
+ * All traffic on the link after the station has been probed must go through
+ * here or come from the owner thread itself. A command written from any
+ * other thread would land between the frames of a running task, and its
+ * reply would be taken for the task's.
+ */
+class SICommandScheduler {
+    enum Lane {
+        // Card readouts, including their ACK, never preempted
+        Readout,
+        // Long transfers such as backup downloads
+        Bulk
+    }
+
+    interface Task {
+        /**
+         * Run the next part of the task, at most one frame exchange.
+         *
+         * @return true while the task has more to do
+         */
+        boolean step();
+
+        /**
+         * Called instead of further steps when the scheduler is cleared.
+         */
+        void cancel();
+    }
+
+    private final ArrayDeque<Task>[] lanes;
+    private Thread owner;
+
+    SICommandScheduler()
+    {
+        @SuppressWarnings("unchecked")
+        ArrayDeque<Task>[] lanes = (ArrayDeque<Task>[]) new ArrayDeque<?>[Lane.values().length];
+        this.lanes = lanes;
+        for (int i=0; i<lanes.length; i++) {
+            lanes[i] = new ArrayDeque<Task>();
+        }
+    }
+
+    /**
+     * Queue a task at the end of its lane, from any thread. The owner thread
+     * picks it up after its current wait, see CardReader.
+     */
+    synchronized void submit(Lane lane, Task task)
+    {
+        lanes[lane.ordinal()].addLast(task);
+    }
+
+    synchronized boolean hasWork()
+    {
+        for (ArrayDeque<Task> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run one step of the first task in the highest lane with work. A task
+     * that is not done stays first in its lane. Only the owner thread, the
+     * first one to call this, may run tasks.
+     *
+     * @return false if there was nothing to run
+     */
+    boolean runNext()
+    {
+        Task task;
+        int lane;
+
+        synchronized (this) {
+            if (owner == null) {
+                owner = Thread.currentThread();
+            }
+            else if (owner != Thread.currentThread()) {
+                throw new IllegalStateException("Tasks must run on the thread owning the link");
+            }
+
+            for (lane = 0; lane < lanes.length && lanes[lane].isEmpty(); lane++) {
+                // Highest lane with work
+            }
+            if (lane == lanes.length) {
+                return false;
+            }
+            task = lanes[lane].peekFirst();
+        }
+
+        // Run without holding the lock, so tasks can be queued meanwhile
+        boolean more = false;
+        try {
+            more = task.step();
+        }
+        finally {
+            if (!more) {
+                synchronized (this) {
+                    lanes[lane].remove(task);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop all queued tasks, calling cancel on each.
+     */
+    void clear()
+    {
+        ArrayDeque<Task> dropped = new ArrayDeque<>();
+
+        synchronized (this) {
+            for (ArrayDeque<Task> lane : lanes) {
+                dropped.addAll(lane);
+                lane.clear();
+            }
+        }
+        for (Task task : dropped) {
+            task.cancel();
+        }
+    }
+}
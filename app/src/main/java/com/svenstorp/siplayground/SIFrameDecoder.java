@@ -0,0 +1,188 @@
+package com.svenstorp.siplayground;
+
+/**
+ * Incremental decoder for frames received from a SportIdent station.
+ *
+ * Incoming bytes are stored in a ring buffer that is kept between calls, so
+ * bytes following a completed frame (e.g. several frames delivered in the same
+ * USB transfer) are retained for the next call instead of being lost.
+ * No allocations are made while feeding or decoding.
+ */
+class SIFrameDecoder {
+    private static final int SI_STX = 0x02;
+    private static final int SI_ETX = 0x03;
+    private static final int SI_NAK = 0x15;
+    private static final int SI_DLE = 0x10;
+
+    static final int RING_SIZE = 4096;
+    static final int MAX_FRAME_SIZE = 4096;
+
+    // Ring buffer holding received but not yet decoded bytes
+    private final byte[] ring = new byte[RING_SIZE];
+    private int ringHead = 0;
+    private int ringCount = 0;
+
+    // Frame currently being assembled
+    private final byte[] frame = new byte[MAX_FRAME_SIZE];
+    private int frameSize = 0;
+    private boolean dle = false;
+    private boolean complete = false;
+    private boolean crcValid = false;
+
+    private long droppedBytes = 0;
+
+    /**
+     * Add received bytes to the ring buffer.
+     *
+     * @return number of bytes accepted, bytes not fitting in the buffer are dropped
+     */
+    int feed(byte[] data, int offset, int length)
+    {
+        int free = RING_SIZE - ringCount;
+        int count = Math.min(length, free);
+        int tail = (ringHead + ringCount) % RING_SIZE;
+        int first = Math.min(count, RING_SIZE - tail);
+
+        System.arraycopy(data, offset, ring, tail, first);
+        System.arraycopy(data, offset + first, ring, 0, count - first);
+        ringCount += count;
+        droppedBytes += length - count;
+
+        return count;
+    }
+
+    /**
+     * Decode buffered bytes until a complete frame is found.
+     *
+     * The frame is available through {@link #getFrame()} and
+     * {@link #getFrameSize()} until the next call to this method. Extended
+     * frames with a bad crc are returned as well, check {@link #isCrcValid()}.
+     *
+     * @return true if a complete frame is available
+     */
+    boolean poll()
+    {
+        if (complete) {
+            complete = false;
+            frameSize = 0;
+            dle = false;
+        }
+
+        while (ringCount > 0) {
+            byte incByte = ring[ringHead];
+            ringHead = (ringHead + 1) % RING_SIZE;
+            ringCount--;
+
+            if (decodeByte(incByte)) {
+                complete = true;
+                crcValid = checkCrc();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Discard all buffered bytes and any partially decoded frame.
+     */
+    void reset()
+    {
+        ringHead = 0;
+        ringCount = 0;
+        frameSize = 0;
+        dle = false;
+        complete = false;
+    }
+
+    byte[] getFrame()
+    {
+        return frame;
+    }
+
+    int getFrameSize()
+    {
+        return complete ? frameSize : 0;
+    }
+
+    boolean isCrcValid()
+    {
+        return complete && crcValid;
+    }
+
+    int getBufferedBytes()
+    {
+        return ringCount;
+    }
+
+    long getDroppedBytes()
+    {
+        return droppedBytes;
+    }
+
+    private boolean decodeByte(byte incByte)
+    {
+        if (frameSize == 0 && incByte != (byte)SI_STX && incByte != (byte)SI_NAK) {
+            // Wakeup bytes and garbage before the start of a frame
+            return false;
+        }
+        if (!(frameSize == 1 && incByte == (byte)SI_STX)) {
+            if (frameSize >= MAX_FRAME_SIZE) {
+                // Garbage on the line, start over
+                frameSize = 0;
+                dle = false;
+                return false;
+            }
+            frame[frameSize++] = incByte;
+        }
+
+        // Check if we have received a NAK
+        if (frameSize == 1 && incByte == (byte)SI_NAK) {
+            return true;
+        }
+
+        // If we have got to message type
+        if (frameSize > 1) {
+            // If the command is in extended range
+            if (byteToUnsignedInt(frame[1]) > 0x80) {
+                if (frameSize > 2 && frameSize >= byteToUnsignedInt(frame[2]) + 6) {
+                    return true;
+                }
+            }
+            // normal command range
+            else {
+                // If last char was a DLE, just continue
+                if (dle) {
+                    dle = false;
+                }
+                // Is this byte a DLE
+                else if (incByte == SI_DLE) {
+                    dle = true;
+                }
+                // Is this byte ETX (end)
+                else if (incByte == SI_ETX) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean checkCrc()
+    {
+        // Only extended frames carry a crc
+        if (frameSize < 2 || byteToUnsignedInt(frame[1]) <= 0x80) {
+            return true;
+        }
+
+        int datalen = byteToUnsignedInt(frame[2]);
+        int crc = (byteToUnsignedInt(frame[datalen+3]) << 8) + byteToUnsignedInt(frame[datalen+4]);
+        return crc == SICRC.calc(frame, 1, datalen+2);
+    }
+
+    private static int byteToUnsignedInt(byte in)
+    {
+        return in & 0xff;
+    }
+}
@@ -0,0 +1,182 @@
+package com.svenstorp.siplayground;
+
+/**
+ * Encoder for frames sent to a SportIdent station.
+ *
+ * Frames are encoded into one buffer that is reused for every write, so no
+ * allocations are made while encoding. Several frames can be put in the
+ * buffer before it is sent, to send them in one USB transfer. Frames that
+ * never change are built once.
+ */
+class SIFrameEncoder {
+    private static final byte SI_WAKEUP = (byte)0xff;
+    private static final byte SI_STX = 0x02;
+    private static final byte SI_ETX = 0x03;
+    private static final byte SI_ACK = 0x06;
+    private static final byte SI_NAK = 0x15;
+    private static final byte SI_DLE = 0x10;
+
+    // Fits any single frame, an extended frame with 255 data bytes or a fully stuffed base frame
+    static final int CAPACITY = 1024;
+    // Smallest frame, wakeup, STX, command and ETX
+    private static final int MIN_FRAME_SIZE = 4;
+
+    static final byte[] ACK_FRAME = new byte[]{SI_WAKEUP, SI_STX, SI_ACK, SI_ETX};
+    static final byte[] NAK_FRAME = new byte[]{SI_WAKEUP, SI_STX, SI_NAK, SI_ETX};
+    // Set MS mode to master (0xf0, 0x4d), the first frame sent to a station at each baud rate
+    static final byte[] PROBE_FRAME = build((byte)0xf0, new byte[]{0x4d});
+
+    private final byte[] buffer;
+    private int size;
+    private int frameCount;
+    // Commands of the frames in the buffer that a reply is timed for
+    private final byte[] timedCommands;
+    private int timedCount;
+
+    SIFrameEncoder()
+    {
+        this(CAPACITY);
+    }
+
+    SIFrameEncoder(int capacity)
+    {
+        this.buffer = new byte[capacity];
+        this.timedCommands = new byte[capacity / MIN_FRAME_SIZE];
+    }
+
+    /**
+     * Add an extended protocol frame, wakeup, STX, command, length, data, crc and ETX.
+     *
+     * @return false if the frame does not fit, the buffer is then unchanged
+     */
+    boolean putExtended(byte command, byte[] data)
+    {
+        int datalen = (data != null) ? data.length : 0;
+        if (size + datalen + 7 > buffer.length) {
+            return false;
+        }
+
+        int start = size;
+        buffer[start] = SI_WAKEUP;
+        buffer[start+1] = SI_STX;
+        buffer[start+2] = command;
+        buffer[start+3] = (byte)datalen;
+        if (datalen > 0) {
+            System.arraycopy(data, 0, buffer, start+4, datalen);
+        }
+        int crc = SICRC.calc(buffer, start+2, datalen+2);
+        buffer[start+datalen+4] = (byte)((crc & 0xff00) >> 8);
+        buffer[start+datalen+5] = (byte)(crc & 0xff);
+        buffer[start+datalen+6] = SI_ETX;
+
+        size += datalen + 7;
+        this.added(command, true);
+        return true;
+    }
+
+    /**
+     * Add a base protocol frame, a DLE goes before every data byte below 0x20.
+     *
+     * @return false if the frame does not fit, the buffer is then unchanged
+     */
+    boolean putBase(byte command, byte[] data)
+    {
+        int datalen = (data != null) ? data.length : 0;
+        int frameSize = datalen + 4;
+        for (int i=0; i<datalen; i++) {
+            if ((data[i] & 0xff) < 0x20) {
+                frameSize++;
+            }
+        }
+        if (size + frameSize > buffer.length) {
+            return false;
+        }
+
+        int pos = size;
+        buffer[pos++] = SI_WAKEUP;
+        buffer[pos++] = SI_STX;
+        buffer[pos++] = command;
+        for (int i=0; i<datalen; i++) {
+            if ((data[i] & 0xff) < 0x20) {
+                buffer[pos++] = SI_DLE;
+            }
+            buffer[pos++] = data[i];
+        }
+        buffer[pos++] = SI_ETX;
+
+        size = pos;
+        this.added(command, true);
+        return true;
+    }
+
+    /**
+     * Add a prebuilt frame, such as ACK_FRAME.
+     *
+     * @param timed true if a reply to the frame is expected and timed
+     * @return false if the frame does not fit, the buffer is then unchanged
+     */
+    boolean put(byte[] frame, boolean timed)
+    {
+        if (size + frame.length > buffer.length) {
+            return false;
+        }
+        System.arraycopy(frame, 0, buffer, size, frame.length);
+        size += frame.length;
+        this.added(frame[2], timed);
+        return true;
+    }
+
+    /**
+     * @return the encoded frames, valid up to getSize() until the next reset
+     */
+    byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    int getSize()
+    {
+        return size;
+    }
+
+    int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    int getTimedCount()
+    {
+        return timedCount;
+    }
+
+    byte getTimedCommand(int index)
+    {
+        return timedCommands[index];
+    }
+
+    /**
+     * Drop all frames, once they have been sent.
+     */
+    void reset()
+    {
+        size = 0;
+        frameCount = 0;
+        timedCount = 0;
+    }
+
+    private void added(byte command, boolean timed)
+    {
+        frameCount++;
+        if (timed) {
+            timedCommands[timedCount++] = command;
+        }
+    }
+
+    private static byte[] build(byte command, byte[] data)
+    {
+        // Sized to hold exactly the one frame
+        SIFrameEncoder encoder = new SIFrameEncoder(data.length + 7);
+        encoder.putExtended(command, data);
+        return encoder.getBuffer();
+    }
+}
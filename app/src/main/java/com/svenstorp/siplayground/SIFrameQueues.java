@@ -0,0 +1,246 @@
+package com.svenstorp.siplayground;
+
+import java.util.ArrayDeque;
+
+/**
+ * Received frames sorted into one bounded FIFO per command byte.
+ *
+ * Used both as the receive queue in async mode and as the cache for frames
+ * read while waiting for another command in sync mode. When a FIFO is full
+ * the oldest frame is dropped, and frames older than the max age are evicted
+ * on access, so unsolicited frames (e.g. from a station in autosend mode)
+ * can not make the cache grow without limit.
+ */
+class SIFrameQueues {
+    private static final int SI_NAK = 0x15;
+
+    static final int DEFAULT_MAX_PER_COMMAND = 16;
+    static final long DEFAULT_MAX_AGE = 30000;
+
+    private static class Entry {
+        final byte[] frame;
+        final long seq;
+        final long timestamp;
+
+        Entry(byte[] frame, long seq, long timestamp)
+        {
+            this.frame = frame;
+            this.seq = seq;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final ArrayDeque<Entry>[] queues;
+    private final int maxPerCommand;
+    private final long maxAge;
+    private long nextSeq = 0;
+    private int size = 0;
+    private boolean closed = false;
+
+    private long droppedFrames = 0;
+    private long expiredFrames = 0;
+    private long lastTakenTime = 0;
+
+    SIFrameQueues()
+    {
+        this(DEFAULT_MAX_PER_COMMAND, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param maxPerCommand max number of frames kept per command byte
+     * @param maxAge max age in ms of a kept frame
+     */
+    SIFrameQueues(int maxPerCommand, long maxAge)
+    {
+        @SuppressWarnings("unchecked")
+        ArrayDeque<Entry>[] queues = (ArrayDeque<Entry>[]) new ArrayDeque<?>[256];
+        this.queues = queues;
+        this.maxPerCommand = maxPerCommand;
+        this.maxAge = maxAge;
+    }
+
+    synchronized void put(byte[] frame)
+    {
+        if (closed || frame.length == 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        int key = commandOf(frame);
+        if (queues[key] == null) {
+            queues[key] = new ArrayDeque<Entry>(maxPerCommand);
+        }
+        ArrayDeque<Entry> queue = queues[key];
+        evictExpired(queue, now);
+        if (queue.size() >= maxPerCommand) {
+            queue.pollFirst();
+            size--;
+            droppedFrames++;
+        }
+        queue.addLast(new Entry(frame, nextSeq++, now));
+        size++;
+        notifyAll();
+    }
+
+    /**
+     * Take the oldest frame for a command, a filter of 0x00 matches any command.
+     * A NAK matches every filter, as it is the answer to whatever was sent last.
+     *
+     * @return the frame, or null if none arrived within timeout ms
+     */
+    synchronized byte[] take(byte filter, long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        byte[] frame;
+
+        while ((frame = poll(filter)) == null && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return frame;
+    }
+
+    synchronized byte[] poll(byte filter)
+    {
+        ArrayDeque<Entry> queue = null;
+
+        if (size == 0) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        if (filter == 0x00) {
+            for (ArrayDeque<Entry> tmp : queues) {
+                if (tmp != null) {
+                    evictExpired(tmp, now);
+                    queue = older(queue, tmp);
+                }
+            }
+        }
+        else {
+            ArrayDeque<Entry> cmdQueue = queues[filter & 0xff];
+            ArrayDeque<Entry> nakQueue = queues[SI_NAK];
+            if (cmdQueue != null) {
+                evictExpired(cmdQueue, now);
+            }
+            if (nakQueue != null) {
+                evictExpired(nakQueue, now);
+            }
+            queue = older(cmdQueue, nakQueue);
+        }
+
+        if (queue == null || queue.isEmpty()) {
+            return null;
+        }
+        size--;
+        Entry entry = queue.pollFirst();
+        lastTakenTime = entry.timestamp;
+        return entry.frame;
+    }
+
+    /**
+     * Take the oldest frame for exactly this command, a NAK does not match.
+     *
+     * @return the frame, or null if none is queued
+     */
+    synchronized byte[] pollCommand(byte command)
+    {
+        ArrayDeque<Entry> queue = queues[command & 0xff];
+        if (queue == null) {
+            return null;
+        }
+        evictExpired(queue, System.nanoTime());
+        Entry entry = queue.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+        size--;
+        lastTakenTime = entry.timestamp;
+        return entry.frame;
+    }
+
+    synchronized void clear()
+    {
+        for (ArrayDeque<Entry> queue : queues) {
+            if (queue != null) {
+                queue.clear();
+            }
+        }
+        size = 0;
+    }
+
+    /**
+     * Drop all frames and wake up any waiting thread, later takes return null at once.
+     */
+    synchronized void close()
+    {
+        clear();
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return System.nanoTime() at which the frame last returned by take or poll was queued
+     */
+    synchronized long getLastTakenTime()
+    {
+        return lastTakenTime;
+    }
+
+    synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return number of frames dropped because the FIFO of their command was full
+     */
+    synchronized long getDroppedCount()
+    {
+        return droppedFrames;
+    }
+
+    /**
+     * @return number of frames evicted because nobody asked for them within max age
+     */
+    synchronized long getExpiredCount()
+    {
+        return expiredFrames;
+    }
+
+    private void evictExpired(ArrayDeque<Entry> queue, long now)
+    {
+        while (!queue.isEmpty() && now - queue.peekFirst().timestamp > maxAge * 1000000L) {
+            queue.pollFirst();
+            size--;
+            expiredFrames++;
+        }
+    }
+
+    private static ArrayDeque<Entry> older(ArrayDeque<Entry> a, ArrayDeque<Entry> b)
+    {
+        if (a == null || a.isEmpty()) {
+            return b;
+        }
+        if (b == null || b.isEmpty()) {
+            return a;
+        }
+        return (a.peekFirst().seq < b.peekFirst().seq) ? a : b;
+    }
+
+    private static int commandOf(byte[] frame)
+    {
+        // Frames are stored as STX, command, ... except a lone NAK
+        return (frame.length > 1) ? (frame[1] & 0xff) : (frame[0] & 0xff);
+    }
+}
@@ -0,0 +1,118 @@
+package com.svenstorp.siplayground;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram. Values are kept
+ * in microseconds, with 16 buckets per power of two (max error about 6%),
+ * from 1 us up to about 19 hours. Recording does not allocate and is safe
+ * from any thread.
+ */
+class SILatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos)
+    {
+        long micros = Math.max(0, Math.min(MAX_VALUE, nanos / 1000));
+
+        counts.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long prev;
+        while (micros > (prev = max.get()) && !max.compareAndSet(prev, micros)) {
+            // retry
+        }
+    }
+
+    void reset()
+    {
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return mean value in ms, 0 if nothing recorded
+     */
+    double getMean()
+    {
+        long n = count.get();
+        return (n > 0) ? sum.get() / 1000.0 / n : 0;
+    }
+
+    /**
+     * @return max value in ms
+     */
+    double getMax()
+    {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return upper bound in ms of the bucket holding the percentile, 0 if nothing recorded
+     */
+    double getPercentile(double percentile)
+    {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long)Math.ceil(n * percentile / 100.0));
+        long seen = 0;
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), max.get()) / 1000.0;
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.US, "n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f ms",
+                getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+    }
+
+    private static int bucketOf(long micros)
+    {
+        if (micros < SUB_COUNT) {
+            return (int)micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int)((micros >> shift) & (SUB_COUNT - 1));
+    }
+
+    private static long upperBoundOf(int bucket)
+    {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        long sub = bucket % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,115 @@
+package com.svenstorp.siplayground;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms per readout phase and link counters for one station.
+ * Recorded from the reader thread and the USB read thread, readable from
+ * any thread.
+ */
+public class SIMetrics {
+    enum Phase {
+        // Card inserted frame received until handed to the reader
+        InsertDetect,
+        // Request written until its reply received
+        RoundTrip,
+        // Card inserted until all blocks read
+        CardRead,
+        // Card blocks parsed into a CardEntry
+        Parse,
+        // Readout broadcast sent until received by the UI
+        Delivery
+    }
+    enum Counter {
+        BytesIn,
+        BytesOut,
+        FramesIn,
+        FramesOut,
+        NaksIn,
+        Timeouts,
+        CrcErrors,
+        // Card blocks requested again after a failed reply
+        Retries
+    }
+
+    private final SILatencyHistogram[] histograms;
+    private final AtomicLongArray counters;
+    private volatile long bytesPerSecond;
+
+    public SIMetrics()
+    {
+        this.histograms = new SILatencyHistogram[Phase.values().length];
+        for (int i=0; i<histograms.length; i++) {
+            histograms[i] = new SILatencyHistogram();
+        }
+        this.counters = new AtomicLongArray(Counter.values().length);
+    }
+
+    void record(Phase phase, long nanos)
+    {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    void count(Counter counter)
+    {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    void count(Counter counter, long delta)
+    {
+        counters.addAndGet(counter.ordinal(), delta);
+    }
+
+    /**
+     * Effective link throughput in bytes per second, as measured when
+     * switching to high speed or over the last card readout. 0 if unknown.
+     */
+    void setThroughput(long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    long getThroughput()
+    {
+        return bytesPerSecond;
+    }
+
+    SILatencyHistogram getHistogram(Phase phase)
+    {
+        return histograms[phase.ordinal()];
+    }
+
+    long getCount(Counter counter)
+    {
+        return counters.get(counter.ordinal());
+    }
+
+    void reset()
+    {
+        for (SILatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i=0; i<counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    /**
+     * @return multi-line summary of all counters and phases, for logging
+     */
+    String dump()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Counter counter : Counter.values()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(counter.name()).append('=').append(getCount(counter));
+        }
+        sb.append(", Throughput=").append(bytesPerSecond).append(" B/s");
+        for (Phase phase : Phase.values()) {
+            sb.append('\n').append(phase.name()).append(": ").append(getHistogram(phase));
+        }
+        return sb.toString();
+    }
+}
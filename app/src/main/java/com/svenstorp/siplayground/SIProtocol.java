@@ -2,30 +2,133 @@ package com.svenstorp.siplayground;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import android.util.Log;
 
-import com.felhr.usbserial.UsbSerialDevice;
-
 public class SIProtocol {
+    public interface FrameListener {
+        void onFrame(byte[] frame, int length);
+    }
+
     //private UsbSerialPort port;
-    private UsbSerialDevice port;
-    private ArrayList<byte[]> msgCache;
+    private SITransport port;
+    private final SIFrameQueues msgCache;
+    private final SIFrameDecoder decoder;
+    // Also the lock for writing, together with batchOwner
+    private final SIFrameEncoder encoder;
+    // Thread between beginBatch and endBatch, only its frames are held back
+    private Thread batchOwner;
+    private final byte[] readBuffer;
+    private final SIRttEstimator rtt;
+    private final SIMetrics metrics;
+    private long lastFrameTime;
+    private boolean lastCrcError;
+    private final boolean asyncReceive;
+    private boolean receiving;
+    private volatile boolean stopped;
+    // Replaced as a whole when changed, read without locking on the USB read thread
+    private volatile FrameListener[] frameListeners = new FrameListener[256];
+    // Requests waiting for their reply, oldest first
+    private final List<SIRequest> pending = new ArrayList<>();
 
     private final String TAG = SIProtocol.class.getSimpleName();
     private static final int SI_STX = 0x02;
     private static final int SI_ETX = 0x03;
-    private static final int SI_ACK = 0x06;
     private static final int SI_NAK = 0x15;
-    private static final int SI_DLE = 0x10;
+    // STX and command of a frame dropped for its crc, shorter than any valid frame
+    private static final int CRC_ERROR_MARKER_SIZE = 2;
 
     private static final int WRITE_TIMEOUT = 500;
 
-    //public SIProtocol(UsbSerialPort port)
-    public SIProtocol(UsbSerialDevice port)
+    /**
+     * @param asyncReceive if true the transport must be opened in async mode,
+     *                     otherwise in sync mode
+     */
+    public SIProtocol(SITransport port, boolean asyncReceive)
     {
         this.port = port;
-        this.msgCache = new ArrayList<byte[]>();
+        this.asyncReceive = asyncReceive;
+        this.msgCache = new SIFrameQueues();
+        this.decoder = new SIFrameDecoder();
+        this.encoder = new SIFrameEncoder();
+        this.readBuffer = new byte[SIFrameDecoder.RING_SIZE];
+        this.rtt = new SIRttEstimator();
+        this.metrics = new SIMetrics();
+    }
+
+    public boolean isAsyncReceive()
+    {
+        return asyncReceive;
+    }
+
+    /**
+     * Start receiving in async mode. Frames are decoded on the USB read thread
+     * and queued per command, readMsg then waits on the queue of the command.
+     */
+    public void startReceive()
+    {
+        if (!asyncReceive || receiving) {
+            return;
+        }
+
+        receiving = true;
+        this.port.startReceive(new SITransport.ReceiveCallback() {
+            @Override
+            public void onReceive(byte[] data, int length) {
+                SIProtocol.this.onReceive(data, length);
+            }
+        });
+    }
+
+    /**
+     * Stop handing out frames, wakes up any thread waiting in readMsg.
+     * Later calls to readMsg return null at once, in both modes.
+     */
+    public void stopReceive()
+    {
+        stopped = true;
+        msgCache.close();
+        for (SIRequest request : this.takeAllPending()) {
+            request.complete(SIRequest.Status.Canceled, null);
+        }
+    }
+
+    /**
+     * Set the baud rate of the port, round trip times are tracked per baud rate.
+     */
+    public void setBaudRate(int baudRate)
+    {
+        this.port.setBaudRate(baudRate);
+        this.rtt.setBaudRate(baudRate);
+    }
+
+    /**
+     * Limits for the timeouts returned by replyTimeout, in ms.
+     */
+    public void setTimeoutBounds(int floor, int ceiling)
+    {
+        this.rtt.setBounds(floor, ceiling);
+    }
+
+    /**
+     * Timeout to use when waiting for the reply to command, derived from
+     * the round trip times seen so far for the command at the current baud
+     * rate (smoothed RTT plus four times its variance).
+     *
+     * @param fallback timeout in ms used until the first reply has been timed
+     */
+    public int replyTimeout(byte command, int fallback)
+    {
+        return this.rtt.timeout(command, fallback);
+    }
+
+    /**
+     * @return smoothed round trip time in ms for command, -1 if not yet known
+     */
+    public float getSmoothedRtt(byte command)
+    {
+        return this.rtt.smoothedRtt(command);
     }
 
     public int writeMsg(byte command, byte[] data)
@@ -35,70 +138,161 @@ public class SIProtocol {
 
     public int writeMsg(byte command, byte[] data, boolean extended)
     {
-        int datalen = 0;
-        int size;
+        synchronized (encoder) {
+            if (!this.encode(command, data, extended)) {
+                // Batch full, send what is there first
+                if (this.flush() != 0 || !this.encode(command, data, extended)) {
+                    return -1;
+                }
+            }
+            // Frames of other threads go out at once, after those held back so far
+            return this.holdsBatch() ? 0 : this.flush();
+        }
+    }
+
+    public int writeAck()
+    {
+        return this.writeFrame(SIFrameEncoder.ACK_FRAME, false);
+    }
+
+    public int writeNak()
+    {
+        return this.writeFrame(SIFrameEncoder.NAK_FRAME, false);
+    }
 
-        if (data != null) {
-            datalen = data.length;
+    /**
+     * Set MS mode to master, the frame used to find the baud rate of a
+     * station. The reply is read with readMsg like any other.
+     */
+    public int writeProbe()
+    {
+        return this.writeFrame(SIFrameEncoder.PROBE_FRAME, true);
+    }
+
+    /**
+     * Hold back the frames written from now on and send them all with one
+     * transport write in endBatch, to save the USB transfers of frames that
+     * are sent back to back, such as pipelined requests. Nothing is sent
+     * before endBatch, so do not wait for a reply in between.
+     *
+     * Only frames written by the calling thread are held back. A frame
+     * written by another thread meanwhile is sent at once, together with the
+     * frames held back so far, so the order on the link stays the write order.
+     *
+     * @throws IllegalStateException if another thread is in a batch
+     */
+    public void beginBatch()
+    {
+        synchronized (encoder) {
+            if (batchOwner != null && batchOwner != Thread.currentThread()) {
+                throw new IllegalStateException("Another thread is batching frames");
+            }
+            batchOwner = Thread.currentThread();
         }
+    }
 
-        if (extended) {
-            size = datalen + 7;
+    /**
+     * Send the frames written since beginBatch, only ends a batch of the calling thread.
+     *
+     * @return 0 on success, -1 if the frames could not be written
+     */
+    public int endBatch()
+    {
+        synchronized (encoder) {
+            if (this.holdsBatch()) {
+                batchOwner = null;
+            }
+            return this.flush();
         }
-        else {
-            size = datalen + 4;
+    }
+
+    /**
+     * Send an extended protocol request and return at once, the reply is
+     * matched to it by command on the USB read thread. Only in async mode.
+     *
+     * @param blockNo block number the reply must carry after CN1 and CN0, -1 for any
+     * @param replyLength exact length of a valid reply frame, 0 for any
+     * @param timeout timeout in ms used until the round trip time of the command is known, see replyTimeout.
+     *                The station answers requests in turn, so the timeout is multiplied by the
+     *                number of requests for the command in flight, this one included
+     * @param callback called when the request completes, may be null
+     */
+    public SIRequest request(byte command, byte[] data, int blockNo, int replyLength, int timeout, SIRequest.Callback callback)
+    {
+        if (!asyncReceive) {
+            throw new IllegalStateException("Requests need async receive");
         }
 
-        byte[] buffer = new byte[size];
-        buffer[0] = (byte)0xff;
-        buffer[1] = SI_STX;
-        buffer[2] = command;
-        if (extended) {
-            buffer[3] = (byte)datalen;
-            if (data != null) {
-                System.arraycopy(data, 0, buffer, 4, data.length);
+        final SIRequest request = new SIRequest(command, blockNo, replyLength, callback);
+        int position = 0;
+        synchronized (pending) {
+            pending.add(request);
+            for (SIRequest other : pending) {
+                if (other.command == command) {
+                    position++;
+                }
             }
-            int crc = SICRC.calc(datalen+2, Arrays.copyOfRange(buffer, 2, buffer.length));
-            buffer[datalen+4] = (byte)((crc & 0xff00) >> 8);
-            buffer[datalen+5] = (byte)(crc & 0xff);
-            buffer[datalen+6] = SI_ETX;
         }
-        else {
-            if (data != null) {
-                System.arraycopy(data, 0, buffer, 3, data.length);
+        if (stopped || this.writeMsg(command, data, true) != 0) {
+            if (this.removePending(request)) {
+                request.complete(stopped ? SIRequest.Status.Canceled : SIRequest.Status.WriteError, null);
             }
-            buffer[datalen+3] = SI_ETX;
+            return request;
         }
 
-        int writtenBytes = this.port.syncWrite(buffer, WRITE_TIMEOUT);
-
-        return (writtenBytes == buffer.length) ? 0 : -1;
+        request.scheduleTimeout(new Runnable() {
+            @Override
+            public void run() {
+                if (SIProtocol.this.removePending(request)) {
+                    metrics.count(SIMetrics.Counter.Timeouts);
+                    SIProtocol.this.completeRequest(request, SIRequest.Status.Timeout, null);
+                }
+            }
+        }, this.replyTimeout(command, timeout) * position);
+        return request;
     }
 
-    public int writeAck()
+    public SIRequest request(byte command, byte[] data, int replyLength, int timeout)
     {
-        byte[] buffer = new byte[4];
-        buffer[0] = (byte)0xff;
-        buffer[1] = SI_STX;
-        buffer[2] = SI_ACK;
-        buffer[3] = SI_ETX;
-
-        int writtenBytes = this.port.syncWrite(buffer, WRITE_TIMEOUT);
-
-        return (writtenBytes == buffer.length) ? 0 : -1;
+        return this.request(command, data, -1, replyLength, timeout, null);
     }
 
-    public int writeNak()
+    /**
+     * Set a listener for all frames with the given command, which are then
+     * handed to it as they are decoded instead of being queued for readMsg.
+     * Called on the USB read thread in async mode, frame is only valid
+     * during the call.
+     *
+     * @param listener the listener, or null to queue the frames again
+     */
+    public void setFrameListener(byte command, FrameListener listener)
     {
-        byte[] buffer = new byte[4];
-        buffer[0] = (byte)0xff;
-        buffer[1] = SI_STX;
-        buffer[2] = SI_NAK;
-        buffer[3] = SI_ETX;
-
-        int writtenBytes = this.port.syncWrite(buffer, WRITE_TIMEOUT);
+        FrameListener[] listeners = frameListeners.clone();
+        listeners[command & 0xff] = listener;
+        frameListeners = listeners;
+    }
 
-        return (writtenBytes == buffer.length) ? 0 : -1;
+    /**
+     * Take a frame with this command if one has already been received,
+     * without waiting and without taking NAKs meant for other requests.
+     * In sync mode only frames read from the port while waiting for other
+     * replies are seen.
+     *
+     * @return the frame, or null if none is queued
+     */
+    public byte[] pollMsg(byte command)
+    {
+        if (stopped) {
+            return null;
+        }
+        byte[] msg;
+        // Frames dropped for their crc are left as markers, which answer nothing here
+        while ((msg = msgCache.pollCommand(command)) != null && msg.length == CRC_ERROR_MARKER_SIZE) {
+        }
+        if (msg != null) {
+            lastFrameTime = msgCache.getLastTakenTime();
+        }
+        return msg;
     }
 
     public byte[] readMsg(int timeout)
@@ -108,102 +302,339 @@ public class SIProtocol {
 
     public byte[] readMsg(int timeout, byte filter)
     {
-        byte[] buffer;
-        int bufferSize = 0;
-        byte[] tmpBuffer;
-        int tmpBufferIndex = 0;
-        int bytesRead = 0;
-        boolean eof = false;
-        boolean dle = false;
+        byte[] msg = this.receive(timeout, filter);
 
-        if ((tmpBuffer = this.dequeueCache(filter)) != null) {
-            return tmpBuffer;
+        if (msg == null && !stopped && !lastCrcError) {
+            metrics.count(SIMetrics.Counter.Timeouts);
         }
-
-        // Try to read all bytes from port
-        buffer = new byte[4096];
-        tmpBuffer = new byte[4096];
-
-        do {
-            if (tmpBufferIndex >= bytesRead) {
-                bytesRead = this.port.syncRead(tmpBuffer, timeout);
-                if (bytesRead == 0) {
-                    break;
+        if (filter != 0x00) {
+            if (msg != null && msg.length > 1 && msg[1] == filter) {
+                long nanos = rtt.received(filter);
+                if (nanos >= 0) {
+                    metrics.record(SIMetrics.Phase.RoundTrip, nanos);
                 }
-                tmpBufferIndex = 0;
             }
-            byte incByte = tmpBuffer[tmpBufferIndex++];
-
-            if (!(bufferSize == 0 && incByte == (byte)0xff) && !(bufferSize == 0 && incByte == 0x00) && !(bufferSize == 1 && incByte == (byte)SI_STX)) {
-                buffer[bufferSize++] = incByte;
+            else if (!stopped) {
+                // Timeout, crc error or NAK, later replies can not be timed
+                rtt.lost(filter);
             }
+        }
 
-            // Check if we have received a NAK
-            if (bufferSize == 1 && incByte == (byte)SI_NAK) {
-                eof = true;
+        return msg;
+    }
+
+    private byte[] receive(int timeout, byte filter)
+    {
+        byte[] msg;
+
+        lastCrcError = false;
+        if (stopped) {
+            return null;
+        }
+        if (asyncReceive) {
+            msg = msgCache.take(filter, timeout);
+            lastFrameTime = msgCache.getLastTakenTime();
+            if (msg != null && msg.length == CRC_ERROR_MARKER_SIZE) {
+                lastCrcError = true;
+                return null;
             }
+            return msg;
+        }
+
+        if ((msg = this.dequeueCache(filter)) != null) {
+            lastFrameTime = msgCache.getLastTakenTime();
+            return msg;
+        }
 
-            // If we have got to message type
-            if (bufferSize > 1) {
-                // If the command is in extended range
-                if (byteToUnsignedInt(buffer[1]) > 0x80) {
-                    if (bufferSize > 2 && bufferSize >= byteToUnsignedInt(buffer[2]) + 6) {
-                        eof = true;
-                        // TODO check crc
+        while (true) {
+            // Decode any bytes left over from earlier reads before touching the port
+            while (decoder.poll()) {
+                byte[] frame = decoder.getFrame();
+                int frameSize = decoder.getFrameSize();
+
+                if (!decoder.isCrcValid()) {
+                    metrics.count(SIMetrics.Counter.CrcErrors);
+                    Log.d(TAG, "Dropping frame with invalid crc (command: " + byteToUnsignedInt(frame[1]) + ")");
+                    // Fail right away if this was the reply we were waiting for
+                    if (filter == 0x00 || filter == frame[1]) {
+                        lastCrcError = true;
+                        return null;
                     }
+                    continue;
+                }
+                this.countFrame(frame, frameSize);
+                if (this.dispatchFrame(frame, frameSize)) {
+                    continue;
+                }
+
+                // Check if message should be cached
+                if (filter != 0x00 && frameSize > 1 && filter != frame[1]) {
+                    enqueueCache(Arrays.copyOfRange(frame, 0, frameSize));
                 }
-                // normal command range
                 else {
-                    // If last char was a DLE, just continue
-                    if(dle) {
-                        dle = false;
-                    }
-                    // Is this byte a DLE
-                    else if(incByte == SI_DLE) {
-                        dle = true;
+                    lastFrameTime = System.nanoTime();
+                    return Arrays.copyOfRange(frame, 0, frameSize);
+                }
+            }
+
+            int bytesRead = this.port.read(readBuffer, timeout);
+            if (bytesRead <= 0 || stopped) {
+                return null;
+            }
+            metrics.count(SIMetrics.Counter.BytesIn, bytesRead);
+            decoder.feed(readBuffer, 0, bytesRead);
+        }
+    }
+
+    private boolean encode(byte command, byte[] data, boolean extended)
+    {
+        return extended ? encoder.putExtended(command, data) : encoder.putBase(command, data);
+    }
+
+    private int writeFrame(byte[] frame, boolean timed)
+    {
+        synchronized (encoder) {
+            if (batchOwner != null) {
+                if (!encoder.put(frame, timed) && (this.flush() != 0 || !encoder.put(frame, timed))) {
+                    return -1;
+                }
+                return this.holdsBatch() ? 0 : this.flush();
+            }
+
+            // Nothing held back outside a batch, the prebuilt frame is written as it is
+            int ret = this.write(frame, frame.length, 1);
+            if (ret == 0 && timed) {
+                rtt.sent(frame[2]);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * @return true if the calling thread is in a batch, called with the encoder locked
+     */
+    private boolean holdsBatch()
+    {
+        return batchOwner == Thread.currentThread();
+    }
+
+    /**
+     * Write the frames in the encoder and start timing their replies.
+     * Called with the encoder locked.
+     */
+    private int flush()
+    {
+        if (encoder.getFrameCount() == 0) {
+            return 0;
+        }
+
+        int ret = this.write(encoder.getBuffer(), encoder.getSize(), encoder.getFrameCount());
+        if (ret == 0) {
+            for (int i=0; i<encoder.getTimedCount(); i++) {
+                rtt.sent(encoder.getTimedCommand(i));
+            }
+        }
+        encoder.reset();
+        return ret;
+    }
+
+    private int write(byte[] buffer, int length, int frames)
+    {
+        int writtenBytes = this.port.write(buffer, length, WRITE_TIMEOUT);
+
+        if (writtenBytes > 0) {
+            metrics.count(SIMetrics.Counter.BytesOut, writtenBytes);
+        }
+        if (writtenBytes != length) {
+            return -1;
+        }
+        metrics.count(SIMetrics.Counter.FramesOut, frames);
+        return 0;
+    }
+
+    private void onReceive(byte[] data, int length)
+    {
+        int offset = 0;
+
+        metrics.count(SIMetrics.Counter.BytesIn, length);
+        // Called on the USB read thread only, which owns the decoder in async mode
+        while (offset < length) {
+            offset += decoder.feed(data, offset, Math.min(length - offset, SIFrameDecoder.RING_SIZE));
+            while (decoder.poll()) {
+                byte[] frame = decoder.getFrame();
+                int frameSize = decoder.getFrameSize();
+
+                if (!decoder.isCrcValid()) {
+                    metrics.count(SIMetrics.Counter.CrcErrors);
+                    Log.d(TAG, "Dropping frame with invalid crc (command: " + byteToUnsignedInt(frame[1]) + ")");
+                    // Let a reader waiting for this command fail right away, like in sync mode
+                    SIRequest request = this.takePending(frame[1]);
+                    if (request != null) {
+                        this.completeRequest(request, SIRequest.Status.CrcError, null);
                     }
-                    // Is this byte ETX (end)
-                    else if(incByte == SI_ETX) {
-                        eof = true;
+                    else {
+                        msgCache.put(new byte[]{SI_STX, frame[1]});
                     }
+                    continue;
                 }
+                this.countFrame(frame, frameSize);
+                if (this.dispatchFrame(frame, frameSize) || this.matchRequest(frame, frameSize)) {
+                    continue;
+                }
+                msgCache.put(Arrays.copyOfRange(frame, 0, frameSize));
             }
+        }
+    }
+
+    /**
+     * @return true if the last readMsg returned null because the reply had an invalid crc
+     */
+    public boolean isCrcError()
+    {
+        return lastCrcError;
+    }
 
-            // Check if message should be cached
-            if (eof && filter != 0x00 && bufferSize > 1 && filter != buffer[1]) {
-                enqueueCache(Arrays.copyOfRange(buffer, 0, bufferSize));
+    public int getCrcErrorCount()
+    {
+        return (int)metrics.getCount(SIMetrics.Counter.CrcErrors);
+    }
 
-                eof = false;
-                dle = false;
-                bufferSize = 0;
+    /**
+     * @return counters and latency histograms of this link
+     */
+    public SIMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return System.nanoTime() at which the frame last returned by readMsg was received
+     */
+    public long getLastFrameTime()
+    {
+        return lastFrameTime;
+    }
+
+    private boolean dispatchFrame(byte[] frame, int frameSize)
+    {
+        FrameListener listener = (frameSize > 1) ? frameListeners[frame[1] & 0xff] : null;
+        if (listener == null) {
+            return false;
+        }
+        listener.onFrame(frame, frameSize);
+        return true;
+    }
+
+    /**
+     * Complete the request a received frame answers. A NAK carries no
+     * command, it is taken as the answer to the oldest request.
+     *
+     * @return false if no request is waiting for the frame
+     */
+    private boolean matchRequest(byte[] frame, int frameSize)
+    {
+        SIRequest request = null;
+
+        synchronized (pending) {
+            for (int i=0; i<pending.size(); i++) {
+                SIRequest candidate = pending.get(i);
+                if ((frameSize == 1 && frame[0] == SI_NAK) || candidate.matches(frame, frameSize)) {
+                    request = pending.remove(i);
+                    break;
+                }
             }
         }
-        while (!eof);
+        if (request == null) {
+            return false;
+        }
 
-        if (eof && bufferSize > 0) {
-            return Arrays.copyOfRange(buffer, 0, bufferSize);
+        if (frameSize == 1) {
+            this.completeRequest(request, SIRequest.Status.Nak, null);
         }
         else {
-            return null;
+            this.completeRequest(request, SIRequest.Status.Done, Arrays.copyOfRange(frame, 0, frameSize));
         }
+        return true;
     }
 
-    private void enqueueCache(byte[] buffer)
+    private void completeRequest(SIRequest request, SIRequest.Status status, byte[] reply)
     {
-        msgCache.add(buffer);
+        if (status == SIRequest.Status.Done && request.replyLength > 0 && reply.length != request.replyLength) {
+            status = SIRequest.Status.BadLength;
+            reply = null;
+        }
+
+        // Time the round trip before the callback can send the next request
+        if (status == SIRequest.Status.Done) {
+            long nanos = rtt.received(request.command);
+            if (nanos >= 0) {
+                metrics.record(SIMetrics.Phase.RoundTrip, nanos);
+            }
+        }
+        else {
+            rtt.lost(request.command);
+        }
+        request.complete(status, reply);
     }
 
-    private byte[] dequeueCache(byte filter)
+    /**
+     * @return oldest request waiting for a reply to command, removed from the pending ones
+     */
+    private SIRequest takePending(byte command)
     {
-        for (int i=0; i<msgCache.size(); i++) {
-            if (filter == 0x00 || msgCache.get(i)[1] == filter) {
-                return msgCache.remove(i);
+        synchronized (pending) {
+            for (int i=0; i<pending.size(); i++) {
+                if (pending.get(i).command == command) {
+                    return pending.remove(i);
+                }
             }
         }
-
         return null;
     }
 
+    private boolean removePending(SIRequest request)
+    {
+        synchronized (pending) {
+            return pending.remove(request);
+        }
+    }
+
+    private List<SIRequest> takeAllPending()
+    {
+        synchronized (pending) {
+            List<SIRequest> requests = new ArrayList<>(pending);
+            pending.clear();
+            return requests;
+        }
+    }
+
+    private void countFrame(byte[] frame, int frameSize)
+    {
+        metrics.count(SIMetrics.Counter.FramesIn);
+        if (frameSize == 1 && frame[0] == SI_NAK) {
+            metrics.count(SIMetrics.Counter.NaksIn);
+        }
+    }
+
+    /**
+     * @return number of frames dropped from the message cache, either because
+     * too many frames for the same command were queued or because they expired
+     */
+    public long getDroppedFrameCount()
+    {
+        return msgCache.getDroppedCount() + msgCache.getExpiredCount();
+    }
+
+    private void enqueueCache(byte[] buffer)
+    {
+        msgCache.put(buffer);
+    }
+
+    private byte[] dequeueCache(byte filter)
+    {
+        return msgCache.poll(filter);
+    }
+
     private static int byteToUnsignedInt(byte in)
     {
         return in & 0xff;
@@ -0,0 +1,25 @@
+package com.svenstorp.siplayground;
+
+/**
+ * One punch sent by a station in autosend mode (transmit record, 0xd3).
+ */
+public class SIPunch {
+    // Serial of the station that received the record
+    public final long serialNo;
+    // Code number of the control that was punched
+    public final int code;
+    public final long cardId;
+    // Punch time in ms since the zero time, like CardEntry punch times
+    public final long time;
+    // Address of the record in the control's backup memory
+    public final int memoryAddress;
+
+    SIPunch(long serialNo, int code, long cardId, long time, int memoryAddress)
+    {
+        this.serialNo = serialNo;
+        this.code = code;
+        this.cardId = cardId;
+        this.time = time;
+        this.memoryAddress = memoryAddress;
+    }
+}
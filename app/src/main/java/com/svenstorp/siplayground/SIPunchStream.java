@@ -0,0 +1,91 @@
+package com.svenstorp.siplayground;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Punches from stations in autosend mode, queued by the USB read threads of
+ * all readers and drained in batches by the consumer.
+ *
+ * The queue is lock-free, so a burst of punches at a mass start never makes
+ * a USB read thread wait for the consumer or for another station. The
+ * number of queued punches is bounded, new punches are dropped (and
+ * counted) while the queue is full.
+ */
+class SIPunchStream {
+    static final int DEFAULT_CAPACITY = 8192;
+
+    private final ConcurrentLinkedQueue<SIPunch> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final int capacity;
+
+    SIPunchStream()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    SIPunchStream(int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queue a punch, from any thread.
+     *
+     * @return false if the queue was full and the punch was dropped
+     */
+    boolean offer(SIPunch punch)
+    {
+        received.incrementAndGet();
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        queue.offer(punch);
+        return true;
+    }
+
+    /**
+     * Move up to max queued punches, oldest first, to batch.
+     *
+     * @return number of punches moved
+     */
+    int drainTo(List<SIPunch> batch, int max)
+    {
+        int count = 0;
+        SIPunch punch;
+
+        while (count < max && (punch = queue.poll()) != null) {
+            size.decrementAndGet();
+            batch.add(punch);
+            count++;
+        }
+        return count;
+    }
+
+    int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return number of punches offered since creation, including dropped ones
+     */
+    long getReceivedCount()
+    {
+        return received.get();
+    }
+
+    /**
+     * @return number of punches dropped because the queue was full
+     */
+    long getDroppedCount()
+    {
+        return dropped.get();
+    }
+}
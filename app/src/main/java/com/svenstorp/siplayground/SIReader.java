@@ -1,9 +1,9 @@
 package com.svenstorp.siplayground;
 
+import android.os.Trace;
 import android.util.Log;
 
 import com.felhr.usbserial.UsbSerialDevice;
-import com.felhr.usbserial.UsbSerialInterface;
 
 class SIReader {
     enum DeviceType {
@@ -25,6 +25,15 @@ class SIReader {
         DeviceType(int num) {
             this.num = num;
         }
+
+        public static DeviceType fromNum(int num) {
+            for (DeviceType type : values()) {
+                if (type.num == num) {
+                    return type;
+                }
+            }
+            return Unknown;
+        }
     }
 
     public static class Info {
@@ -32,6 +41,7 @@ class SIReader {
         public boolean extendedMode;
         public int codeNo;
         public long serialNo;
+        public int baudRate;
     }
 
     public static class SiCardInfo {
@@ -49,26 +59,68 @@ class SIReader {
     // logging tag
     private static final String TAG = SIReader.class.getSimpleName();
     private static final String ACTION_USB_PERMISSION = "com.svenstorp.siplayground.USB_PERMISSION";
+    private static final int VERIFY_TIMEOUT = 500;
+    // STX, cmd, len, CN1, CN0 and four bytes of card number, shortest card inserted or removed frame
+    private static final int CARD_EVENT_SIZE = 9;
+    private static final int LOW_BAUD_RATE = 4800;
+    private static final int HIGH_BAUD_RATE = 38400;
+    // First backup record, and end of the backup memory without extended mode
+    static final long BACKUP_START = 0x100;
+    private static final long LEGACY_BACKUP_END = 0x10000;
+    // System data reads used to measure the link after a speed change
+    private static final int THROUGHPUT_READS = 4;
 
-    private UsbSerialDevice port;
-    private SIProtocol siprot;
+    private SITransport port;
+    private volatile SIProtocol siprot;
     private Info deviceInfo;
+    private boolean asyncReceive;
+    private volatile boolean canceled;
 
     public SIReader(UsbSerialDevice port)
+    {
+        this(port, false);
+    }
+
+    /**
+     * @param asyncReceive receive on a background thread instead of polling the port
+     */
+    public SIReader(UsbSerialDevice port, boolean asyncReceive)
+    {
+        this(new UsbSerialTransport(port), asyncReceive);
+    }
+
+    public SIReader(SITransport port, boolean asyncReceive)
     {
         this.port = port;
+        this.asyncReceive = asyncReceive;
     }
 
     public void close()
     {
+        if (siprot != null) {
+            siprot.stopReceive();
+        }
         if (port != null) {
-            port.syncClose();
+            port.close();
         }
         port = null;
         siprot = null;
         deviceInfo = null;
     }
 
+    /**
+     * Make a probe or read in progress on another thread fail at once, e.g.
+     * when the device has been detached. Call close from the reading thread after.
+     */
+    public void cancel()
+    {
+        canceled = true;
+        SIProtocol proto = siprot;
+        if (proto != null) {
+            proto.stopReceive();
+        }
+    }
+
     public boolean isConnected()
     {
         return (port != null);
@@ -90,20 +142,48 @@ class SIReader {
             return false;
         }
 
-        byte[] reply = siprot.readMsg(timeout);
-        if (reply != null && reply.length > 0) {
+        return this.handleCardEvent(siprot.readMsg(timeout), cardInfo);
+    }
+
+    /**
+     * Check for a card inserted event that has already been received, e.g.
+     * while other commands were running, without waiting.
+     *
+     * @return true if a card was inserted, see waitForCardInsert
+     */
+    public boolean pollCardInsert(SiCardInfo cardInfo)
+    {
+        if (siprot == null) {
+            return false;
+        }
+
+        for (byte command : new byte[]{(byte)0xe5, (byte)0xe6, (byte)0xe8}) {
+            if (this.handleCardEvent(siprot.pollMsg(command), cardInfo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean handleCardEvent(byte[] reply, SiCardInfo cardInfo)
+    {
+        if (reply != null && reply.length >= CARD_EVENT_SIZE) {
             switch(reply[1]) {
                 case (byte) 0xe5:
                 case (byte) 0xe6:
                 case (byte) 0xe8:
                     cardInfo.cardId = (byteToUnsignedInt(reply[6]) << 16) + (byteToUnsignedInt(reply[7]) << 8) + byteToUnsignedInt(reply[8]);
                     cardInfo.format = reply[1];
+                    siprot.getMetrics().record(SIMetrics.Phase.InsertDetect, System.nanoTime() - siprot.getLastFrameTime());
                     Log.d(TAG, "Got card inserted event (CardID: " + cardInfo.cardId + ")");
                     return true;
                 case (byte) 0xe7:
                     int tmpCardId = (byteToUnsignedInt(reply[5]) << 24) + (byteToUnsignedInt(reply[6]) << 16) + (byteToUnsignedInt(reply[7]) << 8) + byteToUnsignedInt(reply[8]);
                     Log.d(TAG, "Got card removed event (CardID: " + tmpCardId + ")");
                     break;
+                case (byte) 0xd3:
+                    Log.d(TAG, "Got punch record, punch streaming is off");
+                    break;
                 default:
                     Log.d(TAG, "Got unknown command waiting for card inserted event");
                     break;
@@ -129,27 +209,105 @@ class SIReader {
 
     public boolean probeDevice()
     {
-        boolean ret = false;
+        return this.probeDevice(null);
+    }
+
+    /**
+     * Open the port and find out what is connected to it.
+     *
+     * @param cached profile stored the last time this device was probed, or null.
+     *               The cached baud rate is tried first, setting MS mode to
+     *               master and reading the station serial in one transfer. If
+     *               the serial matches the profile still holds, otherwise the
+     *               full baud rate and system config probe is done.
+     */
+    public boolean probeDevice(Info cached)
+    {
+        boolean ret;
+
+        siprot = new SIProtocol(port, asyncReceive);
+        if (canceled) {
+            siprot.stopReceive();
+        }
+
+        Trace.beginSection("SI probe");
+        try {
+            port.open(asyncReceive);
+            siprot.startReceive();
+
+            ret = (cached != null && this.verifyProfile(cached));
+            if (!ret) {
+                ret = this.probeConfig();
+            }
+        }
+        finally {
+            Trace.endSection();
+        }
+
+        if (!ret) {
+            siprot.stopReceive();
+            if (port != null) {
+                port.close();
+            }
+            port = null;
+            siprot = null;
+            deviceInfo = null;
+        }
+
+        return ret;
+    }
+
+    private boolean verifyProfile(Info cached)
+    {
         byte[] msg;
         byte[] reply;
 
-        siprot = new SIProtocol(port);
+        siprot.setBaudRate(cached.baudRate);
+        // Set MS mode to master as the full probe does, in the same transfer as the serial query
+        msg = new byte[]{0x00, 0x04};
+        siprot.beginBatch();
+        siprot.writeProbe();
+        siprot.writeMsg((byte) 0x83, msg, true);
+        siprot.endBatch();
+        reply = siprot.readMsg(VERIFY_TIMEOUT, (byte) 0xf0);
+        if (reply == null || reply.length < 2 || reply[1] != (byte) 0xf0) {
+            Log.d(TAG, "No response to set MS mode at cached baud rate, probing device");
+            return false;
+        }
+        reply = siprot.readMsg(VERIFY_TIMEOUT, (byte) 0x83);
 
-        port.syncOpen();
-        port.setDataBits(UsbSerialInterface.DATA_BITS_8);
-        port.setParity(UsbSerialInterface.PARITY_NONE);
-        port.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
+        if (reply == null || reply.length < 10 || readSerialNo(reply) != cached.serialNo) {
+            Log.d(TAG, "Cached profile did not match, probing device");
+            return false;
+        }
+
+        Log.d(TAG, "Device matches cached profile (serial: " + cached.serialNo + ")");
+        deviceInfo = new Info();
+        deviceInfo.codeNo = (byteToUnsignedInt(reply[3]) << 8) + byteToUnsignedInt(reply[4]);
+        deviceInfo.type = cached.type;
+        deviceInfo.extendedMode = cached.extendedMode;
+        deviceInfo.serialNo = cached.serialNo;
+        deviceInfo.baudRate = cached.baudRate;
+        return true;
+    }
+
+    private boolean probeConfig()
+    {
+        boolean ret = false;
+        int baudRate = HIGH_BAUD_RATE;
+        byte[] msg;
+        byte[] reply;
 
         // Start with determine baudrate
-        port.setBaudRate(38400);
-        msg = new byte[]{0x4d};
-        siprot.writeMsg((byte)0xf0, msg, true);
+        siprot.setBaudRate(baudRate);
+        siprot.writeProbe();
         reply = siprot.readMsg(1000, (byte)0xf0);
         if (reply == null || reply.length == 0) {
             Log.d(TAG, "No response on high baudrate mode, trying low baudrate");
-            port.setBaudRate(4800);
+            baudRate = LOW_BAUD_RATE;
+            siprot.setBaudRate(baudRate);
         }
-        siprot.writeMsg((byte)0xf0, msg, true);
+        siprot.writeProbe();
         reply = siprot.readMsg(1000, (byte)0xf0);
         if (reply != null && reply.length > 0) {
             Log.d(TAG, "Unit responded, reading device info");
@@ -161,9 +319,10 @@ class SIReader {
                 Log.d(TAG, "Got device info response");
                 deviceInfo = new Info();
                 deviceInfo.codeNo = (byteToUnsignedInt(reply[3]) << 8) + byteToUnsignedInt(reply[4]);
-                deviceInfo.type = DeviceType.values()[reply[119]];
+                deviceInfo.type = DeviceType.fromNum(byteToUnsignedInt(reply[119]));
                 deviceInfo.extendedMode = (reply[122] & 0x01) == 0x01;
-                deviceInfo.serialNo = (byteToUnsignedInt(reply[6]) << 24) + (byteToUnsignedInt(reply[7]) << 16) + (byteToUnsignedInt(reply[8]) << 8) + byteToUnsignedInt(reply[9]);
+                deviceInfo.serialNo = readSerialNo(reply);
+                deviceInfo.baudRate = baudRate;
                 ret = true;
             } else {
                 Log.d(TAG, "Invalid device info response, trying short info");
@@ -178,22 +337,120 @@ class SIReader {
                     deviceInfo.codeNo = (byteToUnsignedInt(reply[3]) << 8) + byteToUnsignedInt(reply[4]);
                     deviceInfo.type = DeviceType.Unknown;
                     deviceInfo.extendedMode = false;
-                    deviceInfo.serialNo = (byteToUnsignedInt(reply[6]) << 24) + (byteToUnsignedInt(reply[7]) << 16) + (byteToUnsignedInt(reply[8]) << 8) + byteToUnsignedInt(reply[9]);
+                    deviceInfo.serialNo = readSerialNo(reply);
+                    deviceInfo.baudRate = baudRate;
                     ret = true;
                 }
             }
         }
 
-        if (!ret) {
-            if (port != null) {
-                port.syncClose();
+        return ret;
+    }
+
+    /**
+     * Switch a station found at 4800 baud into high speed mode (38400 baud)
+     * with the set baud rate command, and check the new link by reading the
+     * serial number and measuring the throughput before keeping it. If any of
+     * that fails the station is set back to 4800 baud.
+     *
+     * @return true if the station now runs at 38400 baud
+     */
+    public boolean switchToHighSpeed()
+    {
+        if (deviceInfo == null) {
+            return false;
+        }
+        if (deviceInfo.baudRate == HIGH_BAUD_RATE) {
+            return true;
+        }
+
+        Log.d(TAG, "Switching device (serial: " + deviceInfo.serialNo + ") to high speed mode");
+        siprot.writeMsg((byte)0xfe, new byte[]{0x01}, true);
+        byte[] reply = siprot.readMsg(1000, (byte)0xfe);
+        if (reply == null || reply.length < 6 || reply[5] != 0x01) {
+            Log.d(TAG, "Device did not accept high speed mode");
+            return false;
+        }
+
+        siprot.setBaudRate(HIGH_BAUD_RATE);
+        long bytesPerSecond = 0;
+        if (this.verifySerialNo(deviceInfo.serialNo)) {
+            bytesPerSecond = this.measureThroughput();
+        }
+        if (bytesPerSecond <= 0) {
+            Log.d(TAG, "Link check failed at high speed, going back to low speed");
+            siprot.writeMsg((byte)0xfe, new byte[]{0x00}, true);
+            siprot.readMsg(VERIFY_TIMEOUT, (byte)0xfe);
+            siprot.setBaudRate(LOW_BAUD_RATE);
+            return false;
+        }
+
+        Log.d(TAG, "Device now in high speed mode, " + bytesPerSecond + " bytes/s");
+        deviceInfo.baudRate = HIGH_BAUD_RATE;
+        siprot.getMetrics().setThroughput(bytesPerSecond);
+        return true;
+    }
+
+    /**
+     * Read the station's system data a few times and time it.
+     *
+     * @return bytes per second received, counting whole frames, or 0 if a read failed
+     */
+    public long measureThroughput()
+    {
+        byte[] msg = new byte[]{0x00, 0x75};
+        long bytes = 0;
+        long start = System.nanoTime();
+
+        for (int i=0; i<THROUGHPUT_READS; i++) {
+            siprot.writeMsg((byte)0x83, msg, true);
+            byte[] reply = siprot.readMsg(siprot.replyTimeout((byte)0x83, 6000), (byte)0x83);
+            if (reply == null || reply.length < 124) {
+                return 0;
             }
-            port = null;
-            siprot = null;
-            deviceInfo = null;
+            bytes += reply.length;
         }
 
-        return ret;
+        long nanos = Math.max(1, System.nanoTime() - start);
+        return bytes * 1000000000L / nanos;
+    }
+
+    /**
+     * End of the used backup memory. In extended mode this is the backup
+     * pointer from the system data (0x1c-0x1d high, 0x21-0x22 low), without
+     * it the whole two byte address range.
+     *
+     * @return the address after the last record, -1 if it could not be read
+     */
+    public long readBackupEnd()
+    {
+        if (deviceInfo == null) {
+            return -1;
+        }
+        if (!deviceInfo.extendedMode) {
+            return LEGACY_BACKUP_END;
+        }
+
+        siprot.writeMsg((byte)0x83, new byte[]{0x1c, 0x07}, true);
+        byte[] reply = siprot.readMsg(VERIFY_TIMEOUT, (byte)0x83);
+        if (reply == null || reply.length < 16) {
+            return -1;
+        }
+        return ((long)byteToUnsignedInt(reply[6]) << 24) + (byteToUnsignedInt(reply[7]) << 16)
+                + (byteToUnsignedInt(reply[11]) << 8) + byteToUnsignedInt(reply[12]);
+    }
+
+    private boolean verifySerialNo(long serialNo)
+    {
+        siprot.writeMsg((byte)0x83, new byte[]{0x00, 0x04}, true);
+        byte[] reply = siprot.readMsg(VERIFY_TIMEOUT, (byte)0x83);
+        return reply != null && reply.length >= 10 && readSerialNo(reply) == serialNo;
+    }
+
+    private static long readSerialNo(byte[] reply)
+    {
+        // Serial number is the first four bytes of the system config
+        return ((long)byteToUnsignedInt(reply[6]) << 24) + (byteToUnsignedInt(reply[7]) << 16) + (byteToUnsignedInt(reply[8]) << 8) + byteToUnsignedInt(reply[9]);
     }
 
     private static int byteToUnsignedInt(byte in)
@@ -0,0 +1,168 @@
+package com.svenstorp.siplayground;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pending reply to a request sent with SIProtocol.request.
+ *
+ * The reply is matched on the USB read thread by command byte, and by block
+ * number for requests that have one, so several requests can be in flight
+ * at once and their replies can come back in any order. A request always
+ * completes: with the reply, or with a timeout, NAK, crc error, reply of the
+ * wrong length, or when the protocol stops receiving.
+ *
+ * Callers either block in get or are called back when the request
+ * completes. Timeouts of all requests are run by one shared timer thread.
+ */
+public class SIRequest {
+    public interface Callback {
+        /**
+         * Called once, on the USB read thread or the timer thread, or on the
+         * calling thread if the request could not be sent.
+         */
+        void onComplete(SIRequest request);
+    }
+
+    public enum Status {
+        Pending,
+        Done,
+        Timeout,
+        Nak,
+        CrcError,
+        BadLength,
+        WriteError,
+        Canceled
+    }
+
+    // Offset of the block number in block replies: STX, cmd, len, CN1, CN0, block
+    static final int BLOCK_NO_OFFSET = 5;
+
+    private static ScheduledExecutorService timer;
+
+    final byte command;
+    // Block number the reply must carry, -1 for any
+    final int blockNo;
+    // Exact length of a valid reply frame, 0 for any
+    final int replyLength;
+    private final Callback callback;
+    private Status status = Status.Pending;
+    private byte[] reply;
+    // Set once the callback has returned, get waits for it
+    private boolean delivered;
+    private ScheduledFuture<?> timeout;
+
+    SIRequest(byte command, int blockNo, int replyLength, Callback callback)
+    {
+        this.command = command;
+        this.blockNo = blockNo;
+        this.replyLength = replyLength;
+        this.callback = callback;
+    }
+
+    public byte getCommand()
+    {
+        return command;
+    }
+
+    public int getBlockNo()
+    {
+        return blockNo;
+    }
+
+    /**
+     * Wait for the request to complete and its callback to return.
+     *
+     * @return the reply frame, or null if the request failed, see getStatus
+     */
+    public synchronized byte[] get() throws InterruptedException
+    {
+        while (!delivered) {
+            this.wait();
+        }
+        return reply;
+    }
+
+    public synchronized boolean isDone()
+    {
+        return status != Status.Pending;
+    }
+
+    public synchronized Status getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return the reply frame, null unless the status is Done
+     */
+    public synchronized byte[] getReply()
+    {
+        return reply;
+    }
+
+    /**
+     * @return true if the frame answers this request, whatever its length
+     */
+    boolean matches(byte[] frame, int length)
+    {
+        if (length < 2 || frame[1] != command) {
+            return false;
+        }
+        return blockNo < 0 || length <= BLOCK_NO_OFFSET || (frame[BLOCK_NO_OFFSET] & 0xff) == blockNo;
+    }
+
+    /**
+     * @return false if the request had already completed
+     */
+    boolean complete(Status status, byte[] reply)
+    {
+        synchronized (this) {
+            if (this.status != Status.Pending) {
+                return false;
+            }
+            this.status = status;
+            this.reply = reply;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+        try {
+            if (callback != null) {
+                callback.onComplete(this);
+            }
+        }
+        finally {
+            synchronized (this) {
+                delivered = true;
+                this.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    synchronized void scheduleTimeout(Runnable onTimeout, int ms)
+    {
+        if (status == Status.Pending) {
+            timeout = timer().schedule(onTimeout, ms, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService timer()
+    {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SIRequest timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+}
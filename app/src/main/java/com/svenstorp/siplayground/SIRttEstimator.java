@@ -0,0 +1,143 @@
+package com.svenstorp.siplayground;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Round-trip time estimate per command byte and baud rate, used to derive
+ * reply timeouts the way TCP derives its retransmission timeout (RFC 6298):
+ * timeout = SRTT + 4 * RTTVAR, kept within a floor and a ceiling.
+ *
+ * Send times are queued per command so pipelined requests are matched to
+ * their replies in order. A lost or NAKed request clears the queue of its
+ * command (no samples from ambiguous replies) and doubles the timeout of the
+ * command until the next valid sample.
+ */
+class SIRttEstimator {
+    static final int DEFAULT_FLOOR = 50;
+    static final int DEFAULT_CEILING = 5000;
+    private static final int MAX_PENDING = 16;
+    private static final int MAX_BACKOFF = 64;
+
+    private static class Rtt {
+        // Smoothed round trip time and variance in ms, srtt < 0 until the first sample
+        float srtt = -1;
+        float rttvar;
+        int backoff = 1;
+        // Send times in ns of requests still waiting for a reply, oldest at head
+        final long[] pending = new long[MAX_PENDING];
+        int head;
+        int count;
+    }
+
+    private final Map<Integer, Rtt[]> byBaudRate = new HashMap<>();
+    private Rtt[] current;
+    private int floor = DEFAULT_FLOOR;
+    private int ceiling = DEFAULT_CEILING;
+
+    SIRttEstimator()
+    {
+        this.setBaudRate(0);
+    }
+
+    synchronized void setBounds(int floor, int ceiling)
+    {
+        this.floor = floor;
+        this.ceiling = Math.max(floor, ceiling);
+    }
+
+    /**
+     * Switch to the estimates for another baud rate, 0 if unknown.
+     */
+    synchronized void setBaudRate(int baudRate)
+    {
+        current = byBaudRate.get(baudRate);
+        if (current == null) {
+            current = new Rtt[256];
+            byBaudRate.put(baudRate, current);
+        }
+    }
+
+    synchronized void sent(byte command)
+    {
+        Rtt rtt = this.get(command);
+        if (rtt.count == MAX_PENDING) {
+            // Too many unanswered requests, the oldest will never be matched
+            rtt.head = (rtt.head + 1) % MAX_PENDING;
+            rtt.count--;
+        }
+        rtt.pending[(rtt.head + rtt.count) % MAX_PENDING] = System.nanoTime();
+        rtt.count++;
+    }
+
+    /**
+     * @return the round trip time in ns of the request answered, -1 if there was no request to match
+     */
+    synchronized long received(byte command)
+    {
+        Rtt rtt = this.get(command);
+        if (rtt.count == 0) {
+            return -1;
+        }
+
+        long nanos = System.nanoTime() - rtt.pending[rtt.head];
+        float sample = nanos / 1000000f;
+        rtt.head = (rtt.head + 1) % MAX_PENDING;
+        rtt.count--;
+
+        if (rtt.srtt < 0) {
+            rtt.srtt = sample;
+            rtt.rttvar = sample / 2;
+        }
+        else {
+            rtt.rttvar = 0.75f * rtt.rttvar + 0.25f * Math.abs(rtt.srtt - sample);
+            rtt.srtt = 0.875f * rtt.srtt + 0.125f * sample;
+        }
+        rtt.backoff = 1;
+        return nanos;
+    }
+
+    synchronized void lost(byte command)
+    {
+        Rtt rtt = this.get(command);
+        rtt.head = 0;
+        rtt.count = 0;
+        if (rtt.srtt >= 0 && rtt.backoff < MAX_BACKOFF) {
+            rtt.backoff *= 2;
+        }
+    }
+
+    /**
+     * @return timeout in ms for a reply to command, or fallback if there is
+     * no estimate for the command at the current baud rate yet
+     */
+    synchronized int timeout(byte command, int fallback)
+    {
+        Rtt rtt = current[command & 0xff];
+        if (rtt == null || rtt.srtt < 0) {
+            return fallback;
+        }
+
+        long timeout = (long)Math.ceil(rtt.srtt + 4 * rtt.rttvar) * rtt.backoff;
+        return (int)Math.max(floor, Math.min(ceiling, timeout));
+    }
+
+    /**
+     * @return smoothed round trip time in ms for command at the current baud rate, -1 if unknown
+     */
+    synchronized float smoothedRtt(byte command)
+    {
+        Rtt rtt = current[command & 0xff];
+        return (rtt != null) ? rtt.srtt : -1;
+    }
+
+    private Rtt get(byte command)
+    {
+        Rtt rtt = current[command & 0xff];
+        if (rtt == null) {
+            rtt = new Rtt();
+            current[command & 0xff] = rtt;
+        }
+        return rtt;
+    }
+}
@@ -0,0 +1,43 @@
+package com.svenstorp.siplayground;
+
+/**
+ * Byte transport between SIProtocol and a SportIdent station.
+ *
+ * A transport is opened either in sync mode, where data is fetched with
+ * {@link #read(byte[], int)}, or in async mode, where received data is
+ * handed to the callback given to {@link #startReceive(ReceiveCallback)}.
+ */
+public interface SITransport {
+    interface ReceiveCallback {
+        /**
+         * Called on the transport's receive thread, data is only valid during the call.
+         */
+        void onReceive(byte[] data, int length);
+    }
+
+    /**
+     * Open the transport with 8 data bits, no parity and no flow control.
+     */
+    boolean open(boolean async);
+
+    void close();
+
+    void setBaudRate(int baudRate);
+
+    /**
+     * @return number of bytes written, or -1 on error
+     */
+    int write(byte[] data, int length, int timeout);
+
+    /**
+     * Read in sync mode.
+     *
+     * @return number of bytes read, 0 on timeout
+     */
+    int read(byte[] buffer, int timeout);
+
+    /**
+     * Start delivering received data in async mode.
+     */
+    void startReceive(ReceiveCallback callback);
+}
@@ -0,0 +1,70 @@
+package com.svenstorp.siplayground;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.usb.UsbDevice;
+import android.os.Build;
+
+/**
+ * Persistent cache of the last probed SIReader.Info per USB device, so a
+ * reconnecting station can be verified with a single frame instead of a
+ * full baud rate and system config probe.
+ *
+ * Profiles are keyed by USB vendor, product and serial number (vendor and
+ * product only before API 21), and hold the station serial the profile
+ * belongs to.
+ */
+class StationProfiles {
+    private static final String PREFS_NAME = "station_profiles";
+
+    private final SharedPreferences prefs;
+
+    StationProfiles(Context context)
+    {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the USB identity of a device, stable across replugs as long as
+     * the USB serial chip reports a serial number. Before API 21 the serial
+     * number can not be read, all devices of a kind share the key then, which
+     * is safe as a profile is only used after the station serial matched.
+     */
+    static String usbKey(UsbDevice device)
+    {
+        String usbSerial = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            usbSerial = device.getSerialNumber();
+        }
+        return String.format("%04x:%04x:%s", device.getVendorId(), device.getProductId(), (usbSerial != null) ? usbSerial : "");
+    }
+
+    /**
+     * @return the cached profile, or null if the device has not been seen before
+     */
+    synchronized SIReader.Info get(String usbKey)
+    {
+        if (!prefs.contains(usbKey + ".serial")) {
+            return null;
+        }
+
+        SIReader.Info info = new SIReader.Info();
+        info.serialNo = prefs.getLong(usbKey + ".serial", 0);
+        info.baudRate = prefs.getInt(usbKey + ".baud", 38400);
+        info.extendedMode = prefs.getBoolean(usbKey + ".extended", false);
+        info.type = SIReader.DeviceType.fromNum(prefs.getInt(usbKey + ".type", 0));
+        info.codeNo = prefs.getInt(usbKey + ".code", 0);
+        return info;
+    }
+
+    synchronized void put(String usbKey, SIReader.Info info)
+    {
+        prefs.edit()
+                .putLong(usbKey + ".serial", info.serialNo)
+                .putInt(usbKey + ".baud", info.baudRate)
+                .putBoolean(usbKey + ".extended", info.extendedMode)
+                .putInt(usbKey + ".type", info.type.getNum())
+                .putInt(usbKey + ".code", info.codeNo)
+                .apply();
+    }
+}
@@ -0,0 +1,80 @@
+package com.svenstorp.siplayground;
+
+import java.util.Arrays;
+
+import com.felhr.usbserial.UsbSerialDevice;
+import com.felhr.usbserial.UsbSerialInterface;
+
+/**
+ * SITransport on top of a felHR UsbSerialDevice.
+ */
+class UsbSerialTransport implements SITransport {
+    private UsbSerialDevice port;
+    private boolean async;
+
+    UsbSerialTransport(UsbSerialDevice port)
+    {
+        this.port = port;
+    }
+
+    @Override
+    public boolean open(boolean async)
+    {
+        this.async = async;
+
+        boolean ret = async ? port.open() : port.syncOpen();
+        port.setDataBits(UsbSerialInterface.DATA_BITS_8);
+        port.setParity(UsbSerialInterface.PARITY_NONE);
+        port.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
+
+        return ret;
+    }
+
+    @Override
+    public void close()
+    {
+        if (async) {
+            port.close();
+        }
+        else {
+            port.syncClose();
+        }
+    }
+
+    @Override
+    public void setBaudRate(int baudRate)
+    {
+        port.setBaudRate(baudRate);
+    }
+
+    @Override
+    public int write(byte[] data, int length, int timeout)
+    {
+        if (async) {
+            // Queued and sent by the USB write thread, felHR rejects sync transfers in async mode
+            port.write((length == data.length) ? data : Arrays.copyOf(data, length));
+            return length;
+        }
+
+        return port.syncWrite((length == data.length) ? data : Arrays.copyOf(data, length), timeout);
+    }
+
+    @Override
+    public int read(byte[] buffer, int timeout)
+    {
+        return port.syncRead(buffer, timeout);
+    }
+
+    @Override
+    public void startReceive(final ReceiveCallback callback)
+    {
+        port.read(new UsbSerialInterface.UsbReadCallback() {
+            @Override
+            public void onReceivedData(byte[] data) {
+                if (data != null && data.length > 0) {
+                    callback.onReceive(data, data.length);
+                }
+            }
+        });
+    }
+}
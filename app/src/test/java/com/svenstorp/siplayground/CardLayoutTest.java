@@ -0,0 +1,79 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the blocks requested per card series and punch count.
+ */
+public class CardLayoutTest {
+    private static byte[] block0e8(int series, int cardNo, int punches)
+    {
+        byte[] block0 = new byte[128];
+        block0[22] = (byte)punches;
+        block0[24] = (byte)series;
+        block0[25] = (byte)(cardNo >> 16);
+        block0[26] = (byte)(cardNo >> 8);
+        block0[27] = (byte)cardNo;
+        return block0;
+    }
+
+    private static byte[] block0e6(int punches)
+    {
+        byte[] block0 = new byte[128];
+        block0[18] = (byte)punches;
+        return block0;
+    }
+
+    private static int blocksNeeded(CardLayout layout, byte[] block0)
+    {
+        return layout.blocksNeeded(layout.punchCount(block0));
+    }
+
+    @Test
+    public void si6_readsOnlyPunchBlocks() {
+        assertSame(CardLayout.SI6, CardLayout.fromBlock0((byte)0xe6, block0e6(10)));
+        assertEquals(0, blocksNeeded(CardLayout.SI6, block0e6(0)));
+        assertEquals(1, blocksNeeded(CardLayout.SI6, block0e6(10)));
+        assertEquals(1, blocksNeeded(CardLayout.SI6, block0e6(32)));
+        assertEquals(2, blocksNeeded(CardLayout.SI6, block0e6(33)));
+        assertEquals(2, blocksNeeded(CardLayout.SI6, block0e6(64)));
+
+        assertSame(CardLayout.SI6_STAR, CardLayout.fromBlock0((byte)0xe6, block0e6(65)));
+        assertEquals(3, blocksNeeded(CardLayout.SI6_STAR, block0e6(65)));
+        assertEquals(6, blocksNeeded(CardLayout.SI6_STAR, block0e6(192)));
+    }
+
+    @Test
+    public void si8_si9_pCard() {
+        assertSame(CardLayout.SI9, CardLayout.fromBlock0((byte)0xe8, block0e8(1, 1000000, 0)));
+        assertEquals(0, blocksNeeded(CardLayout.SI9, block0e8(1, 1000000, 18)));
+        assertEquals(1, blocksNeeded(CardLayout.SI9, block0e8(1, 1000000, 19)));
+
+        assertSame(CardLayout.SI8, CardLayout.fromBlock0((byte)0xe8, block0e8(2, 2000000, 0)));
+        assertEquals(0, blocksNeeded(CardLayout.SI8, block0e8(2, 2000000, 0)));
+        assertEquals(1, blocksNeeded(CardLayout.SI8, block0e8(2, 2000000, 1)));
+        assertEquals(1, blocksNeeded(CardLayout.SI8, block0e8(2, 2000000, 30)));
+
+        assertSame(CardLayout.PCARD, CardLayout.fromBlock0((byte)0xe8, block0e8(4, 4000000, 0)));
+        assertEquals(1, blocksNeeded(CardLayout.PCARD, block0e8(4, 4000000, 5)));
+
+        // Punches not decoded, block 1 always read
+        assertSame(CardLayout.TCARD, CardLayout.fromBlock0((byte)0xe8, block0e8(6, 6000000, 5)));
+        assertEquals(1, blocksNeeded(CardLayout.TCARD, block0e8(6, 6000000, 0)));
+    }
+
+    @Test
+    public void series15_byCardNumber() {
+        assertSame(CardLayout.SI10, CardLayout.fromBlock0((byte)0xe8, block0e8(15, 7123456, 0)));
+        assertSame(CardLayout.SIAC, CardLayout.fromBlock0((byte)0xe8, block0e8(15, 8123456, 0)));
+        assertSame(CardLayout.SI11, CardLayout.fromBlock0((byte)0xe8, block0e8(15, 9123456, 0)));
+
+        assertEquals(0, blocksNeeded(CardLayout.SIAC, block0e8(15, 8123456, 0)));
+        assertEquals(1, blocksNeeded(CardLayout.SIAC, block0e8(15, 8123456, 10)));
+        assertEquals(2, blocksNeeded(CardLayout.SIAC, block0e8(15, 8123456, 33)));
+        assertEquals(4, blocksNeeded(CardLayout.SIAC, block0e8(15, 8123456, 128)));
+        assertEquals(4, blocksNeeded(CardLayout.SIAC, block0e8(15, 8123456, 200)));
+    }
+}
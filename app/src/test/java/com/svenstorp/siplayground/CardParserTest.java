@@ -0,0 +1,166 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Block 0 fingerprints, which decide whether a reinserted card is taken from
+ * the last readout.
+ */
+public class CardParserTest {
+    private static final byte SI5 = (byte)0xe5;
+    private static final byte SI6 = (byte)0xe6;
+    private static final byte SI8 = (byte)0xe8;
+
+    private static void putTime(byte[] block0, int offset, int seconds)
+    {
+        // PTD, CN, PTH, PTL like a punch on the card
+        block0[offset] = 0x00;
+        block0[offset + 1] = 0x01;
+        block0[offset + 2] = (byte)(seconds >> 8);
+        block0[offset + 3] = (byte)seconds;
+    }
+
+    private static byte[] block0e6(int cardNo, int punches)
+    {
+        byte[] block0 = new byte[128];
+        block0[10] = (byte)(cardNo >> 24);
+        block0[11] = (byte)(cardNo >> 16);
+        block0[12] = (byte)(cardNo >> 8);
+        block0[13] = (byte)cardNo;
+        block0[18] = (byte)punches;
+        putTime(block0, 20, 3600);
+        putTime(block0, 24, 100);
+        putTime(block0, 28, 50);
+        return block0;
+    }
+
+    private static byte[] block0e8(int series, int cardNo, int punches)
+    {
+        byte[] block0 = new byte[128];
+        putTime(block0, 8, 50);
+        putTime(block0, 12, 100);
+        putTime(block0, 16, 3600);
+        block0[22] = (byte)punches;
+        block0[24] = (byte)series;
+        block0[25] = (byte)(cardNo >> 16);
+        block0[26] = (byte)(cardNo >> 8);
+        block0[27] = (byte)cardNo;
+        return block0;
+    }
+
+    /**
+     * Cached readout as kept in the journal, block 0 followed by the punch blocks.
+     */
+    private static byte[] readout(byte[] block0, int blocks)
+    {
+        byte[] data = Arrays.copyOf(block0, 128 * (1 + blocks));
+        for (int i=128; i<data.length; i++) {
+            data[i] = (byte)i;
+        }
+        return data;
+    }
+
+    private static byte[] changed(byte[] block0, int offset)
+    {
+        byte[] copy = block0.clone();
+        copy[offset]++;
+        return copy;
+    }
+
+    @Test
+    public void si5_neverMatches() {
+        // Read in one request anyway, a block 0 read would not save anything
+        byte[] data = new byte[136];
+        data[5 + 23] = 5;
+        assertFalse(CardParser.sameFingerprint(SI5, data, data.clone()));
+    }
+
+    @Test
+    public void si6_match() {
+        byte[] block0 = block0e6(500123, 10);
+        assertTrue(CardParser.sameFingerprint(SI6, readout(block0, 6), block0.clone()));
+        // Bytes outside the fingerprint, e.g. the owner data, do not count
+        assertTrue(CardParser.sameFingerprint(SI6, readout(block0, 6), changed(block0, 40)));
+    }
+
+    @Test
+    public void si6_punchCountDiffers() {
+        byte[] block0 = block0e6(500123, 10);
+        assertFalse(CardParser.sameFingerprint(SI6, readout(block0, 6), block0e6(500123, 11)));
+    }
+
+    @Test
+    public void si6_timesDiffer() {
+        byte[] block0 = block0e6(500123, 10);
+        byte[] cached = readout(block0, 6);
+        // Finish, start and check time
+        assertFalse(CardParser.sameFingerprint(SI6, cached, changed(block0, 23)));
+        assertFalse(CardParser.sameFingerprint(SI6, cached, changed(block0, 27)));
+        assertFalse(CardParser.sameFingerprint(SI6, cached, changed(block0, 31)));
+        // Day of week and half day of the finish punch
+        assertFalse(CardParser.sameFingerprint(SI6, cached, changed(block0, 20)));
+    }
+
+    @Test
+    public void si6_otherCard() {
+        byte[] block0 = block0e6(500123, 10);
+        assertFalse(CardParser.sameFingerprint(SI6, readout(block0, 6), block0e6(500124, 10)));
+    }
+
+    @Test
+    public void si8_match() {
+        byte[] block0 = block0e8(2, 2000123, 20);
+        assertTrue(CardParser.sameFingerprint(SI8, readout(block0, 1), block0.clone()));
+        assertTrue(CardParser.sameFingerprint(SI8, readout(block0, 1), changed(block0, 32)));
+    }
+
+    @Test
+    public void si8_punchCountDiffers() {
+        byte[] block0 = block0e8(2, 2000123, 20);
+        assertFalse(CardParser.sameFingerprint(SI8, readout(block0, 1), block0e8(2, 2000123, 21)));
+    }
+
+    @Test
+    public void si8_timesDiffer() {
+        byte[] block0 = block0e8(2, 2000123, 20);
+        byte[] cached = readout(block0, 1);
+        // Check, start and finish time
+        assertFalse(CardParser.sameFingerprint(SI8, cached, changed(block0, 11)));
+        assertFalse(CardParser.sameFingerprint(SI8, cached, changed(block0, 15)));
+        assertFalse(CardParser.sameFingerprint(SI8, cached, changed(block0, 19)));
+    }
+
+    @Test
+    public void siac_match() {
+        byte[] block0 = block0e8(15, 8000123, 60);
+        assertSame(CardLayout.SIAC, CardLayout.fromBlock0(SI8, block0));
+        assertTrue(CardParser.sameFingerprint(SI8, readout(block0, 4), block0.clone()));
+    }
+
+    @Test
+    public void siac_punchCountDiffers() {
+        byte[] block0 = block0e8(15, 8000123, 60);
+        assertFalse(CardParser.sameFingerprint(SI8, readout(block0, 4), block0e8(15, 8000123, 61)));
+        // A cleared card
+        assertFalse(CardParser.sameFingerprint(SI8, readout(block0, 4), block0e8(15, 8000123, 0)));
+    }
+
+    @Test
+    public void siac_timesDiffer() {
+        byte[] block0 = block0e8(15, 8000123, 60);
+        byte[] cached = readout(block0, 4);
+        assertFalse(CardParser.sameFingerprint(SI8, cached, changed(block0, 11)));
+        assertFalse(CardParser.sameFingerprint(SI8, cached, changed(block0, 15)));
+        assertFalse(CardParser.sameFingerprint(SI8, cached, changed(block0, 19)));
+    }
+
+    @Test
+    public void siac_otherCard() {
+        byte[] block0 = block0e8(15, 8000123, 60);
+        assertFalse(CardParser.sameFingerprint(SI8, readout(block0, 4), block0e8(15, 8000124, 60)));
+    }
+}
@@ -0,0 +1,76 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Keeps and resumes the blocks of cards pulled out mid-read.
+ */
+public class PartialReadoutsTest {
+    private static final long CARD_ID = 8123456;
+
+    private static byte[] siacData(int punches)
+    {
+        byte[] data = new byte[5 * 128];
+        data[22] = (byte)punches;
+        data[24] = (byte)15;
+        data[25] = (byte)(CARD_ID >> 16);
+        data[26] = (byte)(CARD_ID >> 8);
+        data[27] = (byte)CARD_ID;
+        for (int i=128; i<data.length; i++) {
+            data[i] = (byte)i;
+        }
+        return data;
+    }
+
+    @Test
+    public void take_resumesSameCard() {
+        PartialReadouts partials = new PartialReadouts();
+        byte[] data = siacData(128);
+        boolean[] received = {true, true, false, false};
+
+        partials.put(CARD_ID, (byte)0xe8, data, received);
+        assertEquals(1, partials.size());
+
+        PartialReadouts.Partial partial = partials.take(CARD_ID, (byte)0xe8, siacData(128));
+        assertNotNull(partial);
+        assertEquals(2, partial.receivedCount());
+        assertArrayEquals(received, partial.received);
+        assertArrayEquals(data, partial.data);
+
+        // Taken partials are gone
+        assertNull(partials.take(CARD_ID, (byte)0xe8, siacData(128)));
+    }
+
+    @Test
+    public void take_rejectsChangedCard() {
+        PartialReadouts partials = new PartialReadouts();
+        boolean[] received = {true, false, false, false};
+
+        // Punched again in between
+        partials.put(CARD_ID, (byte)0xe8, siacData(100), received);
+        assertNull(partials.take(CARD_ID, (byte)0xe8, siacData(101)));
+
+        partials.put(CARD_ID, (byte)0xe8, siacData(100), received);
+        assertNull(partials.take(CARD_ID, (byte)0xe6, siacData(100)));
+
+        // Nothing worth keeping
+        partials.put(CARD_ID, (byte)0xe8, siacData(100), new boolean[4]);
+        assertEquals(0, partials.size());
+    }
+
+    @Test
+    public void put_isBounded() throws InterruptedException {
+        PartialReadouts partials = new PartialReadouts(2, 50);
+        boolean[] received = {true, false, false, false};
+
+        for (int i=0; i<3; i++) {
+            partials.put(CARD_ID + i, (byte)0xe8, siacData(128), received);
+        }
+        assertEquals(2, partials.size());
+
+        Thread.sleep(100);
+        assertEquals(0, partials.size());
+    }
+}
@@ -0,0 +1,168 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Punches are handed on in punch order, whatever order the blocks arrive in.
+ */
+public class PunchStreamerTest {
+    private static class Batches implements PunchStreamer.Sink {
+        final List<Integer> firstPunches = new ArrayList<>();
+        final List<Integer> codes = new ArrayList<>();
+
+        @Override
+        public void onPunches(CardEntry batch, int firstPunch) {
+            assertEquals(codes.size(), firstPunch);
+            firstPunches.add(firstPunch);
+            for (int i=0; i<batch.punchCount(); i++) {
+                codes.add(batch.punchCode(i));
+            }
+        }
+    }
+
+    private static CardParser parser()
+    {
+        Calendar zeroTime = Calendar.getInstance();
+        zeroTime.set(Calendar.HOUR_OF_DAY, 10);
+        zeroTime.set(Calendar.MINUTE, 0);
+        zeroTime.set(Calendar.SECOND, 0);
+        return new CardParser(zeroTime);
+    }
+
+    private static int code(int punch)
+    {
+        return 31 + punch % 200;
+    }
+
+    private static byte[] cardData(CardLayout layout, int punchCount, int blockCount)
+    {
+        byte[] data = new byte[128 * (1 + blockCount)];
+        for (int i=0; i<punchCount; i++) {
+            int offset = layout.punchOffset + 4*i;
+            data[offset + 1] = (byte)code(i);
+            data[offset + 2] = (byte)(i >> 8);
+            data[offset + 3] = (byte)i;
+        }
+        return data;
+    }
+
+    private static int indexOf(CardLayout layout, int blockNo)
+    {
+        for (int i=0; i<layout.blocks.length; i++) {
+            if (layout.blocks[i] == blockNo) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void assertCodes(int punchCount, Batches batches)
+    {
+        assertEquals(punchCount, batches.codes.size());
+        for (int i=0; i<punchCount; i++) {
+            assertEquals(code(i), (int)batches.codes.get(i));
+        }
+    }
+
+    @Test
+    public void si6Star_blocksOutOfOrder() {
+        // Read order 6, 7, 2, 3, 4, 5, punches start with block 6
+        CardLayout layout = CardLayout.SI6_STAR;
+        int blockCount = layout.blocks.length;
+        Batches batches = new Batches();
+        PunchStreamer streamer = new PunchStreamer(parser(), cardData(layout, 192, blockCount), layout, 192, blockCount, 500123, batches);
+
+        streamer.sendAvailable();
+        assertTrue(batches.firstPunches.isEmpty());
+
+        streamer.onBlock(indexOf(layout, 2));
+        streamer.onBlock(indexOf(layout, 7));
+        // Block 6 missing, nothing can be parsed
+        assertTrue(batches.firstPunches.isEmpty());
+
+        streamer.onBlock(indexOf(layout, 6));
+        // Blocks 6, 7 and 2 in a row, 32 punches each
+        assertEquals(1, batches.firstPunches.size());
+        assertEquals(96, batches.codes.size());
+
+        streamer.onBlock(indexOf(layout, 4));
+        streamer.onBlock(indexOf(layout, 5));
+        assertEquals(1, batches.firstPunches.size());
+
+        streamer.onBlock(indexOf(layout, 3));
+        assertEquals(2, batches.firstPunches.size());
+        assertEquals(96, (int)batches.firstPunches.get(1));
+        assertCodes(192, batches);
+    }
+
+    @Test
+    public void si6Star_blocksInOrder() {
+        CardLayout layout = CardLayout.SI6_STAR;
+        int blockCount = layout.blocks.length;
+        Batches batches = new Batches();
+        PunchStreamer streamer = new PunchStreamer(parser(), cardData(layout, 150, blockCount), layout, 150, blockCount, 500123, batches);
+
+        for (int i=0; i<blockCount; i++) {
+            streamer.onBlock(i);
+        }
+        // The last block holds no punches of this card
+        assertEquals(5, batches.firstPunches.size());
+        assertCodes(150, batches);
+    }
+
+    @Test
+    public void si6_onlyPunchBlocks() {
+        CardLayout layout = CardLayout.SI6;
+        int blockCount = layout.blocksNeeded(40);
+        assertEquals(2, blockCount);
+        Batches batches = new Batches();
+        PunchStreamer streamer = new PunchStreamer(parser(), cardData(layout, 40, blockCount), layout, 40, blockCount, 500123, batches);
+
+        streamer.onBlock(1);
+        assertTrue(batches.firstPunches.isEmpty());
+        streamer.onBlock(0);
+        assertEquals(1, batches.firstPunches.size());
+        assertCodes(40, batches);
+    }
+
+    @Test
+    public void si9_punchesInBlock0() {
+        // Punches start in block 0, which is there before any other block
+        CardLayout layout = CardLayout.SI9;
+        int blockCount = layout.blocksNeeded(50);
+        Batches batches = new Batches();
+        PunchStreamer streamer = new PunchStreamer(parser(), cardData(layout, 50, blockCount), layout, 50, blockCount, 1000123, batches);
+
+        streamer.sendAvailable();
+        assertEquals(18, batches.codes.size());
+        streamer.onBlock(0);
+        assertEquals(2, batches.firstPunches.size());
+        assertEquals(18, (int)batches.firstPunches.get(1));
+        assertCodes(50, batches);
+    }
+
+    @Test
+    public void resumedReadout_keptBlocksFirst() {
+        // Blocks kept from an earlier read are passed in before the rest is read
+        CardLayout layout = CardLayout.SIAC;
+        int blockCount = layout.blocksNeeded(128);
+        Batches batches = new Batches();
+        PunchStreamer streamer = new PunchStreamer(parser(), cardData(layout, 128, blockCount), layout, 128, blockCount, 8000123, batches);
+
+        streamer.onBlock(0);
+        streamer.onBlock(2);
+        streamer.sendAvailable();
+        assertEquals(32, batches.codes.size());
+
+        streamer.onBlock(3);
+        assertEquals(32, batches.codes.size());
+        streamer.onBlock(1);
+        assertCodes(128, batches);
+    }
+}
@@ -0,0 +1,181 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes readouts to a journal and replays them, including after a torn write.
+ */
+public class ReadoutJournalTest {
+    private static final long SERIAL_NO = 512345;
+
+    private static byte[] cardData(int cardNo)
+    {
+        byte[] data = new byte[8 * 128];
+        for (int i=0; i<data.length; i++) {
+            data[i] = (byte)(i + cardNo);
+        }
+        return data;
+    }
+
+    private static List<ReadoutJournal.Record> replay(File file)
+    {
+        final List<ReadoutJournal.Record> records = new ArrayList<>();
+        ReadoutJournal journal = new ReadoutJournal(file);
+        journal.open(new ReadoutJournal.Listener() {
+            @Override
+            public void onRecord(ReadoutJournal.Record record) {
+                records.add(record);
+            }
+        });
+        journal.close();
+        return records;
+    }
+
+    private static File writeJournal(int count) throws IOException
+    {
+        File file = File.createTempFile("readouts", ".journal");
+        file.deleteOnExit();
+
+        ReadoutJournal journal = new ReadoutJournal(file);
+        journal.open(null);
+        for (int i=0; i<count; i++) {
+            assertTrue(journal.append(SERIAL_NO, 8000000 + i, (byte)0xe8, cardData(i)));
+        }
+        journal.close();
+        assertEquals(count, journal.getRecordCount());
+        assertTrue(journal.getCommitCount() <= count);
+        return file;
+    }
+
+    @Test
+    public void append_replaysAllRecords() throws IOException {
+        File file = writeJournal(100);
+
+        List<ReadoutJournal.Record> records = replay(file);
+        assertEquals(100, records.size());
+        for (int i=0; i<records.size(); i++) {
+            ReadoutJournal.Record record = records.get(i);
+            assertEquals(SERIAL_NO, record.serialNo);
+            assertEquals(8000000 + i, record.cardId);
+            assertEquals((byte)0xe8, record.format);
+            assertArrayEquals(cardData(i), record.data);
+        }
+    }
+
+    @Test
+    public void tornRecord_isCutOff() throws IOException {
+        File file = writeJournal(10);
+        long length = file.length();
+
+        // Half written record at the end
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(length);
+        raf.writeInt(1000);
+        raf.writeInt(0x12345678);
+        raf.write(new byte[100]);
+        raf.close();
+
+        assertEquals(10, replay(file).size());
+        assertEquals(length, file.length());
+        new File(file.getPath() + ".bad").deleteOnExit();
+
+        // Appending after the cut keeps the journal readable
+        ReadoutJournal journal = new ReadoutJournal(file);
+        journal.open(null);
+        journal.append(SERIAL_NO, 9000000, (byte)0xe6, cardData(99));
+        journal.close();
+        assertEquals(11, replay(file).size());
+    }
+
+    @Test
+    public void corruptRecord_stopsReplay() throws IOException {
+        File file = writeJournal(10);
+
+        // Flip a data byte in the fourth record
+        int recordSize = 8 + 25 + 8 * 128;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long pos = 8 + 3 * recordSize + 100;
+        raf.seek(pos);
+        int b = raf.read();
+        raf.seek(pos);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        assertEquals(3, replay(file).size());
+        File bad = new File(file.getPath() + ".bad");
+        bad.deleteOnExit();
+        assertEquals(7 * recordSize, bad.length());
+    }
+
+    @Test
+    public void largeRecord_inMixedBatch() throws IOException, InterruptedException {
+        File file = writeJournal(1);
+        final CountDownLatch replayed = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // Hold the writer in the replay so everything below is written as one batch
+        ReadoutJournal journal = new ReadoutJournal(file);
+        journal.open(new ReadoutJournal.Listener() {
+            @Override
+            public void onRecord(ReadoutJournal.Record record) {
+                replayed.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        replayed.await();
+
+        byte[] large = new byte[40 * 1024];
+        for (int i=0; i<large.length; i++) {
+            large[i] = (byte)(i * 3);
+        }
+        for (int i=0; i<5; i++) {
+            assertTrue(journal.append(SERIAL_NO, 8100000 + i, (byte)0xe8, cardData(i)));
+        }
+        assertTrue(journal.append(SERIAL_NO, 8100005, (byte)0xe8, large));
+        for (int i=6; i<10; i++) {
+            assertTrue(journal.append(SERIAL_NO, 8100000 + i, (byte)0xe8, cardData(i)));
+        }
+        release.countDown();
+        journal.close();
+
+        List<ReadoutJournal.Record> records = replay(file);
+        assertEquals(11, records.size());
+        for (int i=0; i<10; i++) {
+            ReadoutJournal.Record record = records.get(i + 1);
+            assertEquals(8100000 + i, record.cardId);
+            assertArrayEquals((i == 5) ? large : cardData(i), record.data);
+        }
+    }
+
+    @Test
+    public void shutdown_writesQueuedRecords() throws IOException {
+        File file = File.createTempFile("readouts", ".journal");
+        file.deleteOnExit();
+
+        ReadoutJournal journal = new ReadoutJournal(file);
+        journal.open(null);
+        for (int i=0; i<20; i++) {
+            assertTrue(journal.append(SERIAL_NO, 8000000 + i, (byte)0xe8, cardData(i)));
+        }
+        journal.shutdown();
+        assertFalse(journal.append(SERIAL_NO, 9000000, (byte)0xe8, cardData(0)));
+
+        // Only to wait for the writer in the test
+        journal.close();
+        assertEquals(20, replay(file).size());
+    }
+}
@@ -0,0 +1,177 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads the backup memory of the simulated station, in both address
+ * modes, across a lost link and stepped between other commands.
+ */
+public class SIBackupDownloadTest {
+    private static final long SERIAL_NO = 512345;
+    private static final int HEADER_SIZE = 25;
+
+    private static byte[] backupMemory(int size)
+    {
+        byte[] memory = new byte[size];
+        for (int i=0; i<size; i++) {
+            // Plenty of bytes that need DLE stuffing in the base protocol
+            memory[i] = (byte)(i * 7);
+        }
+        return memory;
+    }
+
+    private static SIReader reader(SimulatedStation station)
+    {
+        SIReader reader = new SIReader(station, true);
+        assertTrue(reader.probeDevice());
+        return reader;
+    }
+
+    private static File tempFile() throws IOException
+    {
+        File file = File.createTempFile("backup", ".dat");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static byte[] records(File file) throws IOException
+    {
+        byte[] content = new byte[(int)file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            assertEquals(content.length, in.read(content));
+        }
+        finally {
+            in.close();
+        }
+        return Arrays.copyOfRange(content, HEADER_SIZE, content.length);
+    }
+
+    @Test
+    public void extendedMode_downloadsUpToPointer() throws IOException {
+        SimulatedStation station = new SimulatedStation(SERIAL_NO, SIReader.DeviceType.Control, 1);
+        station.setDelay(0, false);
+        byte[] memory = backupMemory(0x10000);
+        long end = SIReader.BACKUP_START + 1000 * SIBackupDownload.EXTENDED_RECORD_SIZE + 40;
+        station.setBackupMemory(memory, end);
+        SIReader reader = reader(station);
+        assertEquals(end, reader.readBackupEnd());
+
+        File file = tempFile();
+        SIBackupDownload download = new SIBackupDownload(reader.getProtoObj(), true, SERIAL_NO, file);
+        assertTrue(download.download(SIReader.BACKUP_START, end, null));
+        assertEquals(end, download.getConfirmedAddress());
+        assertEquals(1005, download.getRecordCount());
+        assertTrue(download.getRecordsPerSecond() > 0);
+        assertArrayEquals(Arrays.copyOfRange(memory, (int)SIReader.BACKUP_START, (int)end), records(file));
+        reader.close();
+    }
+
+    @Test
+    public void lostLink_resumesAtConfirmedAddress() throws IOException {
+        final SimulatedStation station = new SimulatedStation(SERIAL_NO, SIReader.DeviceType.Control, 1);
+        station.setDelay(0, false);
+        byte[] memory = backupMemory(0x10000);
+        long end = SIReader.BACKUP_START + 64 * SIBackupDownload.CHUNK_SIZE;
+        station.setBackupMemory(memory, end);
+        SIReader reader = reader(station);
+        reader.getProtoObj().setTimeoutBounds(10, 100);
+
+        File file = tempFile();
+        SIBackupDownload download = new SIBackupDownload(reader.getProtoObj(), true, SERIAL_NO, file);
+        assertFalse(download.download(SIReader.BACKUP_START, end, new SIBackupDownload.Listener() {
+            @Override
+            public void onProgress(long confirmedAddress, long records, long recordsPerSecond) {
+                if (confirmedAddress >= SIReader.BACKUP_START + 20 * SIBackupDownload.CHUNK_SIZE) {
+                    station.setErrorRates(1, 0, 0);
+                }
+            }
+        }));
+        long confirmed = download.getConfirmedAddress();
+        assertTrue(confirmed >= SIReader.BACKUP_START + 20 * SIBackupDownload.CHUNK_SIZE);
+        assertTrue(confirmed < end);
+        assertEquals(confirmed - SIReader.BACKUP_START, file.length() - HEADER_SIZE);
+
+        // Only the rest is read after the link is back
+        station.setErrorRates(0, 0, 0);
+        long frames = station.getFramesFromHost();
+        download = new SIBackupDownload(reader.getProtoObj(), true, SERIAL_NO, file);
+        assertTrue(download.download(SIReader.BACKUP_START, end, null));
+        assertEquals((end - confirmed) / SIBackupDownload.CHUNK_SIZE, station.getFramesFromHost() - frames);
+        assertArrayEquals(Arrays.copyOfRange(memory, (int)SIReader.BACKUP_START, (int)end), records(file));
+
+        // A file from another station is not resumed
+        download = new SIBackupDownload(reader.getProtoObj(), true, SERIAL_NO + 1, file);
+        assertTrue(download.download(SIReader.BACKUP_START, SIReader.BACKUP_START + 256, null));
+        assertEquals(256, file.length() - HEADER_SIZE);
+        reader.close();
+    }
+
+    @Test
+    public void step_letsCardReadoutIn() throws IOException {
+        SimulatedStation station = new SimulatedStation(SERIAL_NO, SIReader.DeviceType.Read, 1);
+        station.setDelay(1, true);
+        byte[] memory = backupMemory(0x10000);
+        long end = SIReader.BACKUP_START + 32 * SIBackupDownload.CHUNK_SIZE;
+        station.setBackupMemory(memory, end);
+        SIReader reader = reader(station);
+        SIProtocol proto = reader.getProtoObj();
+
+        File file = tempFile();
+        SIBackupDownload download = new SIBackupDownload(proto, true, SERIAL_NO, file);
+        download.setPipelineDepth(1);
+        download.begin(SIReader.BACKUP_START, end, null);
+        for (int i=0; i<8; i++) {
+            assertTrue(download.step());
+        }
+
+        byte[] card = new byte[8 * 128];
+        card[5] = 0x42;
+        station.insertCard(new SimulatedStation.Card((byte)0xe8, 8123456, card));
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        while (!reader.pollCardInsert(cardInfo)) {
+            assertTrue(download.step());
+        }
+        assertEquals(8123456, cardInfo.cardId);
+
+        // Nothing of the backup in flight, the block is the next reply
+        long frames = station.getFramesFromHost();
+        proto.writeMsg((byte)0xef, new byte[]{0}, true);
+        byte[] reply = proto.readMsg(1000, (byte)0xef);
+        assertNotNull(reply);
+        assertEquals(0x42, reply[6 + 5]);
+        assertEquals(frames + 1, station.getFramesFromHost());
+
+        while (download.step()) {
+            // Rest of the backup
+        }
+        download.close();
+        assertTrue(download.isComplete());
+        assertArrayEquals(Arrays.copyOfRange(memory, (int)SIReader.BACKUP_START, (int)end), records(file));
+        reader.close();
+    }
+
+    @Test
+    public void baseProtocol_downloadsWithDleStuffing() throws IOException {
+        SimulatedStation station = new SimulatedStation(SERIAL_NO, SIReader.DeviceType.Control, 1);
+        station.setDelay(0, false);
+        byte[] memory = backupMemory(0x10000);
+        station.setBackupMemory(memory, 0);
+        SIReader reader = reader(station);
+
+        File file = tempFile();
+        long end = SIReader.BACKUP_START + 20 * SIBackupDownload.CHUNK_SIZE + 60;
+        SIBackupDownload download = new SIBackupDownload(reader.getProtoObj(), false, SERIAL_NO, file);
+        assertTrue(download.download(SIReader.BACKUP_START, end, null));
+        assertEquals((end - SIReader.BACKUP_START) / SIBackupDownload.LEGACY_RECORD_SIZE, download.getRecordCount());
+        assertArrayEquals(Arrays.copyOfRange(memory, (int)SIReader.BACKUP_START, (int)end), records(file));
+        reader.close();
+    }
+}
@@ -0,0 +1,201 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the table driven SICRC against the original bit-by-bit implementation.
+ */
+public class SICRCTest {
+    private static final int POLYNOM = 0x8005;
+
+    /**
+     * The original SICRC.calc, kept verbatim as reference. It reads the data as
+     * signed bytes, which only matches the SportIdent algorithm when the second
+     * byte of every 16-bit word is below 0x80. For two bytes of data the result
+     * is not masked, callers only ever used the low 16 bits.
+     */
+    private static int legacyCalc(int uiCount, byte[] pucDat)
+    {
+        int uiTmp1, uiVal;
+        int pucDatIndex = 0;
+
+        if (uiCount < 2) return 0;
+
+        uiTmp1 = pucDat[pucDatIndex++];
+        uiTmp1 = (uiTmp1 << 8) + pucDat[pucDatIndex++];
+
+        if (uiCount == 2) return uiTmp1;
+        for (int iTmp = (uiCount >> 1); iTmp > 0; iTmp--)
+        {
+            if (iTmp > 1) {
+                uiVal = pucDat[pucDatIndex++];
+                uiVal = (uiVal << 8) + pucDat[pucDatIndex++];
+            }
+            else {
+                if ((uiCount & 1) == 1) {
+                    uiVal = pucDat[pucDatIndex];
+                    uiVal <<= 8;
+                }
+                else {
+                    uiVal = 0;
+                }
+            }
+
+            for (int uiTmp=0; uiTmp<16; uiTmp++) {
+                if ((uiTmp1 & 0x8000) == 0x8000) {
+                    uiTmp1 <<= 1;
+                    if ((uiVal & 0x8000) == 0x8000) uiTmp1++;
+                    uiTmp1 ^= POLYNOM;
+                }
+                else {
+                    uiTmp1 <<= 1;
+                    if ((uiVal & 0x8000) == 0x8000) uiTmp1++;
+                }
+                uiVal <<= 1;
+            }
+        }
+
+        return (uiTmp1 & 0xffff);
+    }
+
+    /**
+     * Same algorithm as legacyCalc, reading the data as unsigned bytes.
+     */
+    private static int referenceCalc(int uiCount, byte[] pucDat)
+    {
+        int uiTmp1, uiVal;
+        int pucDatIndex = 0;
+
+        if (uiCount < 2) return 0;
+
+        uiTmp1 = pucDat[pucDatIndex++] & 0xff;
+        uiTmp1 = (uiTmp1 << 8) + (pucDat[pucDatIndex++] & 0xff);
+
+        if (uiCount == 2) return uiTmp1;
+        for (int iTmp = (uiCount >> 1); iTmp > 0; iTmp--)
+        {
+            if (iTmp > 1) {
+                uiVal = pucDat[pucDatIndex++] & 0xff;
+                uiVal = (uiVal << 8) + (pucDat[pucDatIndex++] & 0xff);
+            }
+            else {
+                if ((uiCount & 1) == 1) {
+                    uiVal = (pucDat[pucDatIndex] & 0xff) << 8;
+                }
+                else {
+                    uiVal = 0;
+                }
+            }
+
+            for (int uiTmp=0; uiTmp<16; uiTmp++) {
+                if ((uiTmp1 & 0x8000) == 0x8000) {
+                    uiTmp1 <<= 1;
+                    if ((uiVal & 0x8000) == 0x8000) uiTmp1++;
+                    uiTmp1 ^= POLYNOM;
+                }
+                else {
+                    uiTmp1 <<= 1;
+                    if ((uiVal & 0x8000) == 0x8000) uiTmp1++;
+                }
+                uiVal <<= 1;
+            }
+        }
+
+        return (uiTmp1 & 0xffff);
+    }
+
+    private static byte[] randomData(Random random, int length)
+    {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void calc_knownFrames() {
+        // 02 f0 01 4d 6d 0a 03
+        assertEquals(0x6d0a, SICRC.calc(3, new byte[]{(byte)0xf0, 0x01, 0x4d}));
+        // 02 b1 00 b1 00 03
+        assertEquals(0xb100, SICRC.calc(2, new byte[]{(byte)0xb1, 0x00}));
+    }
+
+    @Test
+    public void calc_matchesLegacy() {
+        Random random = new Random(4711);
+
+        // Frames sent by SIProtocol
+        byte[][] frames = {
+                {(byte)0xf0, 0x01, 0x4d},
+                {(byte)0x83, 0x02, 0x00, 0x75},
+                {(byte)0x83, 0x02, 0x00, 0x07},
+                {(byte)0xb1, 0x00},
+                {(byte)0xe1, 0x01, 0x06},
+                {(byte)0xef, 0x01, 0x04},
+        };
+        for (byte[] frame : frames) {
+            assertEquals(legacyCalc(frame.length, frame) & 0xffff, SICRC.calc(frame.length, frame));
+        }
+
+        // Any data where the legacy sign extension has no effect
+        for (int length=0; length<300; length++) {
+            byte[] data = randomData(random, length);
+            for (int i=1; i<length; i+=2) {
+                data[i] &= 0x7f;
+            }
+            assertEquals(legacyCalc(length, data) & 0xffff, SICRC.calc(length, data));
+        }
+    }
+
+    @Test
+    public void calc_matchesReference() {
+        Random random = new Random(1337);
+        for (int length=0; length<300; length++) {
+            byte[] data = randomData(random, length);
+            assertEquals(referenceCalc(length, data), SICRC.calc(length, data));
+        }
+    }
+
+    @Test
+    public void calc_offsetLengthAndByteBuffer() {
+        Random random = new Random(42);
+        for (int length=0; length<140; length++) {
+            byte[] data = randomData(random, length + 7);
+            byte[] slice = new byte[length];
+            System.arraycopy(data, 3, slice, 0, length);
+            int expected = referenceCalc(length, slice);
+
+            assertEquals(expected, SICRC.calc(data, 3, length));
+
+            ByteBuffer heap = ByteBuffer.wrap(data, 3, length);
+            assertEquals(expected, SICRC.calc(heap));
+            assertEquals(3, heap.position());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            direct.position(3);
+            direct.limit(3 + length);
+            assertEquals(expected, SICRC.calc(direct));
+            assertEquals(3, direct.position());
+        }
+    }
+
+    @Test
+    public void update_matchesCalc() {
+        Random random = new Random(7);
+        SICRC crc = new SICRC();
+        for (int length=0; length<300; length++) {
+            byte[] data = randomData(random, length);
+            int split = (length > 0) ? random.nextInt(length) : 0;
+
+            crc.reset();
+            crc.update(data, 0, split);
+            crc.update(ByteBuffer.wrap(data, split, length - split));
+            assertEquals(SICRC.calc(length, data), crc.getValue());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs tasks by lane priority, one step at a time.
+ */
+public class SICommandSchedulerTest {
+    private static class CountingTask implements SICommandScheduler.Task {
+        private final String name;
+        private final List<String> log;
+        private int steps;
+        boolean canceled;
+
+        CountingTask(String name, int steps, List<String> log)
+        {
+            this.name = name;
+            this.steps = steps;
+            this.log = log;
+        }
+
+        @Override
+        public boolean step() {
+            log.add(name);
+            return --steps > 0;
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+        }
+    }
+
+    @Test
+    public void readout_preemptsBulkAtStep() {
+        SICommandScheduler scheduler = new SICommandScheduler();
+        List<String> log = new ArrayList<>();
+
+        scheduler.submit(SICommandScheduler.Lane.Bulk, new CountingTask("bulk", 4, log));
+        assertTrue(scheduler.runNext());
+        assertTrue(scheduler.runNext());
+
+        scheduler.submit(SICommandScheduler.Lane.Readout, new CountingTask("readout1", 1, log));
+        scheduler.submit(SICommandScheduler.Lane.Readout, new CountingTask("readout2", 2, log));
+        while (scheduler.runNext()) {
+            // Until all done
+        }
+
+        assertFalse(scheduler.hasWork());
+        String[] expected = {"bulk", "bulk", "readout1", "readout2", "readout2", "bulk", "bulk"};
+        assertArrayEquals(expected, log.toArray());
+    }
+
+    @Test
+    public void clear_cancelsQueuedTasks() {
+        SICommandScheduler scheduler = new SICommandScheduler();
+        List<String> log = new ArrayList<>();
+        CountingTask bulk = new CountingTask("bulk", 10, log);
+
+        scheduler.submit(SICommandScheduler.Lane.Bulk, bulk);
+        scheduler.runNext();
+        scheduler.clear();
+        assertTrue(bulk.canceled);
+        assertFalse(scheduler.hasWork());
+        assertFalse(scheduler.runNext());
+    }
+
+    @Test
+    public void runNext_onlyOnOwnerThread() throws InterruptedException {
+        final SICommandScheduler scheduler = new SICommandScheduler();
+        scheduler.runNext();
+
+        final boolean[] rejected = new boolean[1];
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.runNext();
+                }
+                catch (IllegalStateException e) {
+                    rejected[0] = true;
+                }
+            }
+        });
+        other.start();
+        other.join();
+        assertTrue(rejected[0]);
+    }
+}
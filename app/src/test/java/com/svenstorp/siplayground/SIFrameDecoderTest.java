@@ -0,0 +1,118 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds the decoder byte streams as they come from the USB transfers.
+ */
+public class SIFrameDecoderTest {
+    private static byte[] blockReply(int block)
+    {
+        byte[] frame = new byte[128 + 9];
+        frame[0] = 0x02;
+        frame[1] = (byte)0xef;
+        frame[2] = (byte)131;
+        frame[5] = (byte)block;
+        for (int i=0; i<128; i++) {
+            frame[6 + i] = (byte)(block + i);
+        }
+        int crc = SICRC.calc(frame, 1, 133);
+        frame[134] = (byte)(crc >> 8);
+        frame[135] = (byte)crc;
+        frame[136] = 0x03;
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... parts)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] frame(SIFrameDecoder decoder)
+    {
+        return Arrays.copyOf(decoder.getFrame(), decoder.getFrameSize());
+    }
+
+    @Test
+    public void severalFramesInOneChunk() {
+        byte[] stream = concat(blockReply(0), blockReply(1), blockReply(2));
+        SIFrameDecoder decoder = new SIFrameDecoder();
+        assertEquals(stream.length, decoder.feed(stream, 0, stream.length));
+
+        for (int block=0; block<3; block++) {
+            assertTrue(decoder.poll());
+            assertTrue(decoder.isCrcValid());
+            assertArrayEquals(blockReply(block), frame(decoder));
+        }
+        assertFalse(decoder.poll());
+        assertEquals(0, decoder.getBufferedBytes());
+    }
+
+    @Test
+    public void frameSplitAcrossChunks() {
+        byte[] stream = concat(blockReply(0), blockReply(1));
+        SIFrameDecoder decoder = new SIFrameDecoder();
+
+        // Split inside the first frame and again inside the second
+        decoder.feed(stream, 0, 64);
+        assertFalse(decoder.poll());
+        decoder.feed(stream, 64, 100);
+        assertTrue(decoder.poll());
+        assertArrayEquals(blockReply(0), frame(decoder));
+        assertFalse(decoder.poll());
+        decoder.feed(stream, 164, stream.length - 164);
+        assertTrue(decoder.poll());
+        assertArrayEquals(blockReply(1), frame(decoder));
+        assertFalse(decoder.poll());
+    }
+
+    @Test
+    public void loneNak() {
+        byte[] stream = concat(new byte[]{0x15}, blockReply(3));
+        SIFrameDecoder decoder = new SIFrameDecoder();
+        decoder.feed(stream, 0, stream.length);
+
+        assertTrue(decoder.poll());
+        assertEquals(1, decoder.getFrameSize());
+        assertEquals(0x15, decoder.getFrame()[0]);
+        assertTrue(decoder.poll());
+        assertArrayEquals(blockReply(3), frame(decoder));
+    }
+
+    @Test
+    public void dleStuffedBaseFrame() {
+        // Base protocol reply with data bytes 0x01, 0x03 (ETX) and 0x10 (DLE), each after a DLE
+        byte[] stuffed = new byte[]{0x02, 0x74, 0x10, 0x01, 0x10, 0x03, 0x10, 0x10, 0x40, 0x03};
+        SIFrameDecoder decoder = new SIFrameDecoder();
+        decoder.feed(stuffed, 0, stuffed.length);
+
+        assertTrue(decoder.poll());
+        assertTrue(decoder.isCrcValid());
+        // Ends at the real ETX, not at the stuffed one, DLEs are kept for the caller to remove
+        assertArrayEquals(stuffed, frame(decoder));
+        assertFalse(decoder.poll());
+    }
+
+    @Test
+    public void garbageBeforeStx() {
+        byte[] stream = concat(new byte[]{(byte)0xff, 0x41, 0x42, 0x00, 0x7f}, blockReply(4), new byte[]{0x55, (byte)0xff}, blockReply(5));
+        SIFrameDecoder decoder = new SIFrameDecoder();
+        decoder.feed(stream, 0, stream.length);
+
+        assertTrue(decoder.poll());
+        assertTrue(decoder.isCrcValid());
+        assertArrayEquals(blockReply(4), frame(decoder));
+        assertTrue(decoder.poll());
+        assertArrayEquals(blockReply(5), frame(decoder));
+        assertFalse(decoder.poll());
+    }
+}
@@ -0,0 +1,62 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the frames built by SIFrameEncoder byte by byte.
+ */
+public class SIFrameEncoderTest {
+    @Test
+    public void extended_blockRequest() {
+        SIFrameEncoder encoder = new SIFrameEncoder();
+        assertTrue(encoder.putExtended((byte)0xef, new byte[]{0x03}));
+
+        byte[] frame = new byte[]{(byte)0xff, 0x02, (byte)0xef, 0x01, 0x03, 0, 0, 0x03};
+        int crc = SICRC.calc(frame, 2, 3);
+        frame[5] = (byte)(crc >> 8);
+        frame[6] = (byte)crc;
+        assertEquals(frame.length, encoder.getSize());
+        assertArrayEquals(frame, Arrays.copyOf(encoder.getBuffer(), encoder.getSize()));
+        assertEquals(1, encoder.getTimedCount());
+        assertEquals((byte)0xef, encoder.getTimedCommand(0));
+    }
+
+    @Test
+    public void base_dleStuffed() {
+        SIFrameEncoder encoder = new SIFrameEncoder();
+        assertTrue(encoder.putBase((byte)0x74, new byte[]{0x01, 0x40}));
+
+        byte[] frame = new byte[]{(byte)0xff, 0x02, 0x74, 0x10, 0x01, 0x40, 0x03};
+        assertArrayEquals(frame, Arrays.copyOf(encoder.getBuffer(), encoder.getSize()));
+    }
+
+    @Test
+    public void prebuiltFrames() {
+        SIFrameEncoder encoder = new SIFrameEncoder();
+        assertTrue(encoder.putExtended((byte)0xf0, new byte[]{0x4d}));
+        assertArrayEquals(SIFrameEncoder.PROBE_FRAME, Arrays.copyOf(encoder.getBuffer(), encoder.getSize()));
+        assertArrayEquals(new byte[]{(byte)0xff, 0x02, 0x06, 0x03}, SIFrameEncoder.ACK_FRAME);
+        assertArrayEquals(new byte[]{(byte)0xff, 0x02, 0x15, 0x03}, SIFrameEncoder.NAK_FRAME);
+    }
+
+    @Test
+    public void batch_fullAndReset() {
+        SIFrameEncoder encoder = new SIFrameEncoder(20);
+        assertTrue(encoder.putExtended((byte)0xef, new byte[]{0}));
+        assertTrue(encoder.put(SIFrameEncoder.ACK_FRAME, false));
+        assertTrue(encoder.put(SIFrameEncoder.ACK_FRAME, false));
+        assertFalse(encoder.putExtended((byte)0xef, new byte[]{1}));
+        assertEquals(16, encoder.getSize());
+        assertEquals(3, encoder.getFrameCount());
+        assertEquals(1, encoder.getTimedCount());
+
+        encoder.reset();
+        assertEquals(0, encoder.getSize());
+        assertEquals(0, encoder.getFrameCount());
+        assertTrue(encoder.putExtended((byte)0xef, new byte[]{1}));
+    }
+}
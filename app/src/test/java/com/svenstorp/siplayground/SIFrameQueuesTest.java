@@ -0,0 +1,132 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Per-command FIFOs: bound, age eviction and filtered takes.
+ */
+public class SIFrameQueuesTest {
+    private static byte[] frame(int command, int tag)
+    {
+        return new byte[]{0x02, (byte)command, 0x01, (byte)tag, 0x00, 0x00, 0x03};
+    }
+
+    @Test
+    public void overflowAtBound_dropsOldest() {
+        SIFrameQueues queues = new SIFrameQueues(4, SIFrameQueues.DEFAULT_MAX_AGE);
+        for (int i=0; i<4; i++) {
+            queues.put(frame(0xd3, i));
+        }
+        assertEquals(4, queues.size());
+        assertEquals(0, queues.getDroppedCount());
+
+        queues.put(frame(0xd3, 4));
+        queues.put(frame(0xd3, 5));
+        assertEquals(4, queues.size());
+        assertEquals(2, queues.getDroppedCount());
+        for (int i=2; i<6; i++) {
+            assertArrayEquals(frame(0xd3, i), queues.poll((byte)0xd3));
+        }
+        assertNull(queues.poll((byte)0xd3));
+    }
+
+    @Test
+    public void boundIsPerCommand() {
+        SIFrameQueues queues = new SIFrameQueues(2, SIFrameQueues.DEFAULT_MAX_AGE);
+        queues.put(frame(0xd3, 0));
+        queues.put(frame(0xd3, 1));
+        queues.put(frame(0xe5, 0));
+        queues.put(frame(0xe5, 1));
+        assertEquals(4, queues.size());
+        assertEquals(0, queues.getDroppedCount());
+    }
+
+    @Test
+    public void expiryByAge() throws InterruptedException {
+        SIFrameQueues queues = new SIFrameQueues(SIFrameQueues.DEFAULT_MAX_PER_COMMAND, 50);
+        queues.put(frame(0xd3, 0));
+        queues.put(frame(0xd3, 1));
+        Thread.sleep(100);
+        queues.put(frame(0xd3, 2));
+
+        // The two old frames are evicted when the new one is queued
+        assertEquals(2, queues.getExpiredCount());
+        assertEquals(1, queues.size());
+        assertArrayEquals(frame(0xd3, 2), queues.poll((byte)0xd3));
+    }
+
+    @Test
+    public void expiryByAge_onTake() throws InterruptedException {
+        SIFrameQueues queues = new SIFrameQueues(SIFrameQueues.DEFAULT_MAX_PER_COMMAND, 50);
+        queues.put(frame(0xd3, 0));
+        queues.put(frame(0xe5, 0));
+        Thread.sleep(100);
+
+        assertNull(queues.take((byte)0x00, 0));
+        assertEquals(2, queues.getExpiredCount());
+        assertEquals(0, queues.size());
+    }
+
+    @Test
+    public void take_withCommandFilter() {
+        SIFrameQueues queues = new SIFrameQueues();
+        queues.put(frame(0xd3, 0));
+        queues.put(frame(0xe5, 0));
+        queues.put(frame(0xd3, 1));
+
+        assertArrayEquals(frame(0xe5, 0), queues.take((byte)0xe5, 0));
+        assertNull(queues.take((byte)0xe5, 0));
+        assertNull(queues.take((byte)0xe1, 0));
+        assertEquals(2, queues.size());
+    }
+
+    @Test
+    public void take_withCommandFilter_matchesNak() {
+        SIFrameQueues queues = new SIFrameQueues();
+        queues.put(frame(0xd3, 0));
+        queues.put(new byte[]{0x15});
+
+        assertArrayEquals(new byte[]{0x15}, queues.take((byte)0xef, 0));
+        assertArrayEquals(frame(0xd3, 0), queues.take((byte)0xd3, 0));
+    }
+
+    @Test
+    public void take_withFilterZero_inArrivalOrder() {
+        SIFrameQueues queues = new SIFrameQueues();
+        queues.put(frame(0xd3, 0));
+        queues.put(frame(0xe5, 0));
+        queues.put(new byte[]{0x15});
+        queues.put(frame(0xd3, 1));
+
+        assertArrayEquals(frame(0xd3, 0), queues.take((byte)0x00, 0));
+        assertArrayEquals(frame(0xe5, 0), queues.take((byte)0x00, 0));
+        assertArrayEquals(new byte[]{0x15}, queues.take((byte)0x00, 0));
+        assertArrayEquals(frame(0xd3, 1), queues.take((byte)0x00, 0));
+        assertNull(queues.take((byte)0x00, 0));
+    }
+
+    @Test
+    public void take_waitsForPut() throws InterruptedException {
+        final SIFrameQueues queues = new SIFrameQueues();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                queues.put(frame(0xe5, 0));
+                queues.put(frame(0xd3, 0));
+            }
+        });
+        producer.start();
+
+        assertArrayEquals(frame(0xd3, 0), queues.take((byte)0xd3, 2000));
+        producer.join();
+        assertEquals(1, queues.size());
+    }
+}
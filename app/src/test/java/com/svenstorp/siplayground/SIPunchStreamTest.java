@@ -0,0 +1,69 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queues punches from several threads and drains them in batches.
+ */
+public class SIPunchStreamTest {
+    @Test
+    public void offer_fromManyThreads() throws InterruptedException {
+        final SIPunchStream stream = new SIPunchStream();
+        Thread[] producers = new Thread[4];
+
+        for (int t=0; t<producers.length; t++) {
+            final long serialNo = t;
+            producers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i=0; i<1000; i++) {
+                        assertTrue(stream.offer(new SIPunch(serialNo, 31, i, i * 1000L, i)));
+                    }
+                }
+            });
+            producers[t].start();
+        }
+
+        List<SIPunch> punches = new ArrayList<>();
+        long[] lastCard = {-1, -1, -1, -1};
+        while (punches.size() < 4000) {
+            int first = punches.size();
+            stream.drainTo(punches, 300);
+            for (int i=first; i<punches.size(); i++) {
+                // In order per producer
+                SIPunch punch = punches.get(i);
+                assertEquals(lastCard[(int)punch.serialNo] + 1, punch.cardId);
+                lastCard[(int)punch.serialNo] = punch.cardId;
+            }
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(0, stream.size());
+        assertEquals(4000, stream.getReceivedCount());
+        assertEquals(0, stream.getDroppedCount());
+    }
+
+    @Test
+    public void offer_dropsWhenFull() {
+        SIPunchStream stream = new SIPunchStream(10);
+        for (int i=0; i<15; i++) {
+            assertEquals(i < 10, stream.offer(new SIPunch(1, 31, i, 0, 0)));
+        }
+        assertEquals(10, stream.size());
+        assertEquals(5, stream.getDroppedCount());
+
+        List<SIPunch> batch = new ArrayList<>();
+        assertEquals(4, stream.drainTo(batch, 4));
+        assertEquals(0, batch.get(0).cardId);
+        assertEquals(6, stream.drainTo(batch, 100));
+        assertEquals(9, batch.get(9).cardId);
+        assertTrue(stream.offer(new SIPunch(1, 31, 15, 0, 0)));
+    }
+}
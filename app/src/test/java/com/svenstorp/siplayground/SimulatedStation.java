@@ -0,0 +1,687 @@
+package com.svenstorp.siplayground;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * In-memory SportIdent station, usable as SITransport on a plain JVM.
+ *
+ * Answers 0xf0 (set MS mode), 0x83 (get system value), 0xfe (set baud rate),
+ * 0x81 and base protocol 0x74 (read backup memory), 0xb1 (read SI-Card 5)
+ * and 0xe1/0xef (read SI-Card 6 and 8/9/10/11/SIAC/pCard block). Replies
+ * are delivered after the time they would take on the wire at the station's
+ * baud rate plus a fixed latency. Nothing is answered while the host uses
+ * another baud rate than the station. Replies can be dropped, NAKed or
+ * corrupted at configurable rates.
+ */
+class SimulatedStation implements SITransport {
+    private static final int SI_STX = 0x02;
+    private static final int SI_ETX = 0x03;
+    private static final int SI_ACK = 0x06;
+    private static final int SI_NAK = 0x15;
+    private static final int SI_DLE = 0x10;
+    private static final int BLOCK_SIZE = 128;
+
+    static class Card {
+        final byte insertCommand;
+        final long cardId;
+        final byte[] data;
+
+        /**
+         * @param insertCommand 0xe5 (SI-Card 5), 0xe6 (SI-Card 6) or 0xe8 (SI-Card 8 and later)
+         * @param data card memory, 128 bytes for SI-Card 5, otherwise all blocks from block 0
+         */
+        Card(byte insertCommand, long cardId, byte[] data)
+        {
+            this.insertCommand = insertCommand;
+            this.cardId = cardId;
+            this.data = data;
+        }
+
+        /**
+         * Load a card image, a raw dump of the card memory as described for the constructor.
+         */
+        static Card load(File file, byte insertCommand, long cardId) throws IOException
+        {
+            InputStream in = new FileInputStream(file);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+                return new Card(insertCommand, cardId, out.toByteArray());
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+
+    private static class Pending {
+        final byte[] data;
+        final long readyAt;
+        int offset;
+
+        Pending(byte[] data, long readyAt)
+        {
+            this.data = data;
+            this.readyAt = readyAt;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Pending> rxQueue = new ArrayDeque<Pending>();
+    private final byte[] config = new byte[128];
+    private final Random random;
+
+    private int stationBaudRate = 38400;
+    private int hostBaudRate = 0;
+    private int latency = 0;
+    private boolean wireDelay = true;
+    private double dropRate = 0;
+    private double nakRate = 0;
+    private double corruptRate = 0;
+    private boolean autoReinsert = false;
+    private boolean baudSwitch = true;
+    private boolean reverseReplies = false;
+    // Replies to the frames of the write being handled, while they are reversed
+    private ArrayDeque<byte[]> heldReplies;
+    private byte[] backup = new byte[0];
+    private int codeNo = 10;
+    // Last MS mode set with 0xf0, 0 until the host sets one
+    private byte msMode = 0;
+
+    private boolean open = false;
+    private Thread receiveThread;
+    private Card card;
+    private long lastReadyAt = 0;
+
+    private long readouts = 0;
+    private long bytesToHost = 0;
+    private long bytesFromHost = 0;
+    private long framesFromHost = 0;
+    private long writesFromHost = 0;
+
+    SimulatedStation(long serialNo, SIReader.DeviceType type, long seed)
+    {
+        this.random = new Random(seed);
+        config[0] = (byte)(serialNo >> 24);
+        config[1] = (byte)(serialNo >> 16);
+        config[2] = (byte)(serialNo >> 8);
+        config[3] = (byte)serialNo;
+        config[0x71] = (byte)type.getNum();
+        // Extended protocol
+        config[0x74] = 0x01;
+    }
+
+    void setStationBaudRate(int baudRate)
+    {
+        this.stationBaudRate = baudRate;
+    }
+
+    /**
+     * @param baudSwitch false to NAK the set baud rate command
+     */
+    void setBaudSwitch(boolean baudSwitch)
+    {
+        this.baudSwitch = baudSwitch;
+    }
+
+    /**
+     * Answer the frames that arrive in one write in reverse order, like a
+     * station that does not keep pipelined requests in order.
+     */
+    void setReverseReplies(boolean reverseReplies)
+    {
+        synchronized (lock) {
+            this.reverseReplies = reverseReplies;
+        }
+    }
+
+    /**
+     * @param memory backup memory from address 0
+     * @param end backup pointer, address after the last record
+     */
+    void setBackupMemory(byte[] memory, long end)
+    {
+        synchronized (lock) {
+            this.backup = memory;
+            config[0x1c] = (byte)(end >> 24);
+            config[0x1d] = (byte)(end >> 16);
+            config[0x21] = (byte)(end >> 8);
+            config[0x22] = (byte)end;
+        }
+    }
+
+    int getStationBaudRate()
+    {
+        synchronized (lock) {
+            return stationBaudRate;
+        }
+    }
+
+    void setCodeNo(int codeNo)
+    {
+        this.codeNo = codeNo;
+    }
+
+    /**
+     * @param latency ms from a complete request until the station starts answering
+     * @param wireDelay add the transfer time of the reply at the station baud rate
+     */
+    void setDelay(int latency, boolean wireDelay)
+    {
+        this.latency = latency;
+        this.wireDelay = wireDelay;
+    }
+
+    /**
+     * Rates between 0 and 1 of replies that are not sent, replaced by a NAK or sent with a bad crc.
+     */
+    void setErrorRates(double dropRate, double nakRate, double corruptRate)
+    {
+        this.dropRate = dropRate;
+        this.nakRate = nakRate;
+        this.corruptRate = corruptRate;
+    }
+
+    /**
+     * Remove and insert the card again each time a readout is ACKed.
+     */
+    void setAutoReinsert(boolean autoReinsert)
+    {
+        this.autoReinsert = autoReinsert;
+    }
+
+    void insertCard(Card card)
+    {
+        this.insertCard(card, false);
+    }
+
+    /**
+     * @param corruptEvent true to send the card inserted frame with a bad crc
+     */
+    void insertCard(Card card, boolean corruptEvent)
+    {
+        synchronized (lock) {
+            this.card = card;
+            sendCardEvent(card.insertCommand, card.cardId, corruptEvent);
+        }
+    }
+
+    void removeCard()
+    {
+        synchronized (lock) {
+            if (card != null) {
+                sendCardEvent((byte)0xe7, card.cardId, false);
+                card = null;
+            }
+        }
+    }
+
+    /**
+     * Send a transmit record (0xd3) as a station in autosend mode does.
+     *
+     * @param seconds punch time in seconds after midnight, am only
+     */
+    void sendPunch(int code, long cardId, int seconds, int address)
+    {
+        synchronized (lock) {
+            byte[] data = new byte[]{
+                    (byte)(cardId >> 24), (byte)(cardId >> 16), (byte)(cardId >> 8), (byte)cardId,
+                    0x00, (byte)(seconds >> 8), (byte)seconds, (byte)0x80,
+                    (byte)(address >> 16), (byte)(address >> 8), (byte)address};
+            int tmpCodeNo = codeNo;
+            codeNo = code;
+            queueFrame(0xd3, data, false);
+            codeNo = tmpCodeNo;
+        }
+    }
+
+    long getReadoutCount()
+    {
+        synchronized (lock) {
+            return readouts;
+        }
+    }
+
+    long getBytesToHost()
+    {
+        synchronized (lock) {
+            return bytesToHost;
+        }
+    }
+
+    long getBytesFromHost()
+    {
+        synchronized (lock) {
+            return bytesFromHost;
+        }
+    }
+
+    long getFramesFromHost()
+    {
+        synchronized (lock) {
+            return framesFromHost;
+        }
+    }
+
+    /**
+     * @return MS mode last set by the host, 0x4d for master, 0 if never set
+     */
+    byte getMsMode()
+    {
+        synchronized (lock) {
+            return msMode;
+        }
+    }
+
+    /**
+     * @return number of transport writes, each one USB transfer on a real station
+     */
+    long getWritesFromHost()
+    {
+        synchronized (lock) {
+            return writesFromHost;
+        }
+    }
+
+    @Override
+    public boolean open(boolean async)
+    {
+        synchronized (lock) {
+            open = true;
+            rxQueue.clear();
+        }
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (lock) {
+            open = false;
+            rxQueue.clear();
+            lock.notifyAll();
+        }
+        if (receiveThread != null) {
+            receiveThread.interrupt();
+            receiveThread = null;
+        }
+    }
+
+    @Override
+    public void setBaudRate(int baudRate)
+    {
+        synchronized (lock) {
+            this.hostBaudRate = baudRate;
+        }
+    }
+
+    @Override
+    public int write(byte[] data, int length, int timeout)
+    {
+        synchronized (lock) {
+            if (!open) {
+                return -1;
+            }
+            bytesFromHost += length;
+            writesFromHost++;
+            handleFrames(data, length);
+        }
+        return length;
+    }
+
+    @Override
+    public int read(byte[] buffer, int timeout)
+    {
+        synchronized (lock) {
+            if (!waitForData(System.currentTimeMillis() + timeout)) {
+                return 0;
+            }
+            return takeReady(buffer);
+        }
+    }
+
+    @Override
+    public void startReceive(final ReceiveCallback callback)
+    {
+        receiveThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[512];
+                while (!Thread.currentThread().isInterrupted()) {
+                    int count;
+                    synchronized (lock) {
+                        if (!open) {
+                            break;
+                        }
+                        count = waitForData(Long.MAX_VALUE) ? takeReady(buffer) : 0;
+                    }
+                    if (count > 0) {
+                        callback.onReceive(buffer, count);
+                    }
+                }
+            }
+        }, "SimulatedStation-rx");
+        receiveThread.setDaemon(true);
+        receiveThread.start();
+    }
+
+    private boolean waitForData(long deadline)
+    {
+        while (open) {
+            long now = System.currentTimeMillis();
+            Pending head = rxQueue.peekFirst();
+            if (head != null && head.readyAt <= now) {
+                return true;
+            }
+            long wakeup = (head != null) ? Math.min(head.readyAt, deadline) : deadline;
+            if (wakeup <= now) {
+                return false;
+            }
+            try {
+                lock.wait(wakeup - now);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private int takeReady(byte[] buffer)
+    {
+        long now = System.currentTimeMillis();
+        int count = 0;
+
+        while (count < buffer.length && !rxQueue.isEmpty() && rxQueue.peekFirst().readyAt <= now) {
+            Pending head = rxQueue.peekFirst();
+            int chunk = Math.min(buffer.length - count, head.data.length - head.offset);
+            System.arraycopy(head.data, head.offset, buffer, count, chunk);
+            head.offset += chunk;
+            count += chunk;
+            if (head.offset == head.data.length) {
+                rxQueue.pollFirst();
+            }
+        }
+        bytesToHost += count;
+
+        return count;
+    }
+
+    private void handleFrames(byte[] data, int length)
+    {
+        if (reverseReplies) {
+            heldReplies = new ArrayDeque<byte[]>();
+            handleFrameSequence(data, length);
+            ArrayDeque<byte[]> replies = heldReplies;
+            heldReplies = null;
+            while (!replies.isEmpty()) {
+                queueBytes(replies.pollLast());
+            }
+            return;
+        }
+        handleFrameSequence(data, length);
+    }
+
+    private void handleFrameSequence(byte[] data, int length)
+    {
+        int i = 0;
+
+        while (i < length) {
+            // Skip wakeup bytes and look for start of frame
+            if (data[i] != SI_STX) {
+                i++;
+                continue;
+            }
+            i++;
+            if (i < length && data[i] == SI_STX) {
+                i++;
+            }
+            if (i >= length) {
+                break;
+            }
+
+            int command = data[i] & 0xff;
+            if (command > 0x80) {
+                if (i + 1 >= length || i + 1 + (data[i+1] & 0xff) + 3 > length) {
+                    break;
+                }
+                int datalen = data[i+1] & 0xff;
+                int crc = ((data[i+datalen+2] & 0xff) << 8) | (data[i+datalen+3] & 0xff);
+                framesFromHost++;
+                if (crc != SICRC.calc(data, i, datalen + 2)) {
+                    queueNak();
+                }
+                else {
+                    handleCommand(command, Arrays.copyOfRange(data, i + 2, i + 2 + datalen));
+                }
+                i += datalen + 5;
+            }
+            else {
+                int start = i;
+                boolean dle = false;
+                ByteArrayOutputStream unstuffed = new ByteArrayOutputStream();
+                while (i < length) {
+                    if (dle) {
+                        dle = false;
+                    }
+                    else if (data[i] == SI_DLE) {
+                        dle = true;
+                        i++;
+                        continue;
+                    }
+                    else if (data[i] == SI_ETX && i > start) {
+                        break;
+                    }
+                    if (i > start) {
+                        unstuffed.write(data[i]);
+                    }
+                    i++;
+                }
+                framesFromHost++;
+                if (command == SI_ACK) {
+                    handleAck();
+                }
+                else {
+                    handleLegacyCommand(command, unstuffed.toByteArray());
+                }
+                i++;
+            }
+        }
+    }
+
+    private void handleCommand(int command, byte[] data)
+    {
+        if (hostBaudRate != stationBaudRate) {
+            // Garbage on the line at the wrong speed, the station does not answer
+            return;
+        }
+        if (dropRate > 0 && random.nextDouble() < dropRate) {
+            return;
+        }
+        if (nakRate > 0 && random.nextDouble() < nakRate) {
+            queueNak();
+            return;
+        }
+
+        switch (command) {
+            case 0xf0:
+                if (data.length > 0) {
+                    msMode = data[0];
+                }
+                queueReply(command, new byte[]{0x4d});
+                break;
+            case 0x83: {
+                int addr = (data.length > 0) ? data[0] & 0xff : 0;
+                int count = (data.length > 1) ? data[1] & 0xff : 1;
+                if (addr + count > config.length) {
+                    queueNak();
+                    break;
+                }
+                byte[] reply = new byte[count + 1];
+                reply[0] = (byte)addr;
+                System.arraycopy(config, addr, reply, 1, count);
+                queueReply(command, reply);
+                break;
+            }
+            case 0xfe: {
+                if (!baudSwitch || data.length < 1 || (data[0] & 0xfe) != 0) {
+                    queueNak();
+                    break;
+                }
+                // Answered at the old speed, the new one applies to what follows
+                queueReply(command, new byte[]{data[0]});
+                stationBaudRate = (data[0] == 0x01) ? 38400 : 4800;
+                break;
+            }
+            case 0x81: {
+                if (data.length < 4) {
+                    queueNak();
+                    break;
+                }
+                int addr = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+                int count = data[3] & 0xff;
+                if (addr + count > backup.length) {
+                    queueNak();
+                    break;
+                }
+                byte[] reply = new byte[count + 3];
+                System.arraycopy(data, 0, reply, 0, 3);
+                System.arraycopy(backup, addr, reply, 3, count);
+                queueReply(command, reply);
+                break;
+            }
+            case 0xb1:
+                if (card == null || card.insertCommand != (byte)0xe5) {
+                    queueNak();
+                    break;
+                }
+                queueReply(command, Arrays.copyOf(card.data, BLOCK_SIZE));
+                break;
+            case 0xe1:
+            case 0xef: {
+                byte expected = (command == 0xe1) ? (byte)0xe6 : (byte)0xe8;
+                int block = (data.length > 0) ? data[0] & 0xff : 0;
+                if (card == null || card.insertCommand != expected || (block + 1) * BLOCK_SIZE > card.data.length) {
+                    queueNak();
+                    break;
+                }
+                byte[] reply = new byte[BLOCK_SIZE + 1];
+                reply[0] = (byte)block;
+                System.arraycopy(card.data, block * BLOCK_SIZE, reply, 1, BLOCK_SIZE);
+                queueReply(command, reply);
+                break;
+            }
+            default:
+                queueNak();
+                break;
+        }
+    }
+
+    /**
+     * Base protocol commands, only 0x74 (read 128 bytes of backup memory).
+     */
+    private void handleLegacyCommand(int command, byte[] data)
+    {
+        if (hostBaudRate != stationBaudRate || (dropRate > 0 && random.nextDouble() < dropRate)) {
+            return;
+        }
+        int addr = (data.length >= 2) ? ((data[0] & 0xff) << 8) | (data[1] & 0xff) : -1;
+        if (command != 0x74 || addr < 0 || addr + BLOCK_SIZE > backup.length) {
+            queueNak();
+            return;
+        }
+
+        // STX, command, CN, ADR1, ADR0, data, ETX with a DLE before every byte below 0x20
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(SI_STX);
+        frame.write(command);
+        byte[] payload = new byte[3 + BLOCK_SIZE];
+        payload[0] = (byte)codeNo;
+        payload[1] = (byte)(addr >> 8);
+        payload[2] = (byte)addr;
+        System.arraycopy(backup, addr, payload, 3, BLOCK_SIZE);
+        for (byte b : payload) {
+            if ((b & 0xff) < 0x20) {
+                frame.write(SI_DLE);
+            }
+            frame.write(b);
+        }
+        frame.write(SI_ETX);
+        queueBytes(frame.toByteArray());
+    }
+
+    private void handleAck()
+    {
+        if (card == null) {
+            return;
+        }
+        readouts++;
+        if (autoReinsert) {
+            Card tmpCard = card;
+            removeCard();
+            insertCard(tmpCard);
+        }
+    }
+
+    private void sendCardEvent(byte command, long cardId, boolean corrupt)
+    {
+        queueFrame(command & 0xff, new byte[]{(byte)(cardId >> 24), (byte)(cardId >> 16), (byte)(cardId >> 8), (byte)cardId}, corrupt);
+    }
+
+    private void queueReply(int command, byte[] data)
+    {
+        boolean corrupt = corruptRate > 0 && random.nextDouble() < corruptRate;
+        queueFrame(command, data, corrupt);
+    }
+
+    private void queueFrame(int command, byte[] data, boolean corrupt)
+    {
+        // STX, command, length, code number, data, crc, ETX
+        byte[] frame = new byte[data.length + 8];
+        frame[0] = SI_STX;
+        frame[1] = (byte)command;
+        frame[2] = (byte)(data.length + 2);
+        frame[3] = (byte)(codeNo >> 8);
+        frame[4] = (byte)codeNo;
+        System.arraycopy(data, 0, frame, 5, data.length);
+        int crc = SICRC.calc(frame, 1, data.length + 4);
+        frame[data.length + 5] = (byte)(crc >> 8);
+        frame[data.length + 6] = (byte)crc;
+        frame[data.length + 7] = SI_ETX;
+        if (corrupt) {
+            frame[5 + random.nextInt(data.length)] ^= 0x01;
+        }
+        queueBytes(frame);
+    }
+
+    private void queueNak()
+    {
+        queueBytes(new byte[]{SI_NAK});
+    }
+
+    private void queueBytes(byte[] bytes)
+    {
+        if (heldReplies != null) {
+            heldReplies.addLast(bytes);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long start = Math.max(now + latency, lastReadyAt);
+        long wire = wireDelay ? (bytes.length * 10L * 1000L) / stationBaudRate : 0;
+        lastReadyAt = start + wire;
+        rxQueue.addLast(new Pending(bytes, lastReadyAt));
+        lock.notifyAll();
+    }
+}
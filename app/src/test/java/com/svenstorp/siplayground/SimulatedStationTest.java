@@ -0,0 +1,634 @@
+package com.svenstorp.siplayground;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs SIReader and SIProtocol against the simulated station.
+ */
+public class SimulatedStationTest {
+    private static final long SERIAL_NO = 512345;
+    private static final long CARD_ID = 8123456;
+    // Waits that should end early, long enough not to run out on a loaded host
+    private static final int WAIT_TIMEOUT = 5000;
+    // Timeout bounds for tests that need timeouts to fire, the floor well
+    // above the 36 ms a block reply takes on the wire at 38400 baud
+    private static final int TIMEOUT_FLOOR = 60;
+    private static final int TIMEOUT_CEILING = 100;
+
+    private static SimulatedStation.Card card10()
+    {
+        byte[] data = new byte[8 * 128];
+        Arrays.fill(data, (byte)0xee);
+        for (int i=0; i<data.length; i++) {
+            if (i < 128 || i % 7 == 0) {
+                data[i] = (byte)i;
+            }
+        }
+        return new SimulatedStation.Card((byte)0xe8, CARD_ID, data);
+    }
+
+    private static SimulatedStation station()
+    {
+        SimulatedStation station = new SimulatedStation(SERIAL_NO, SIReader.DeviceType.Read, 1);
+        station.setDelay(1, true);
+        return station;
+    }
+
+    private static void probe(SIReader reader)
+    {
+        assertTrue(reader.probeDevice());
+        assertEquals(SERIAL_NO, reader.getDeviceInfo().serialNo);
+        assertEquals(SIReader.DeviceType.Read, reader.getDeviceInfo().type);
+        assertTrue(reader.getDeviceInfo().extendedMode);
+    }
+
+    private static void readBlocks(SIReader reader, SimulatedStation.Card card)
+    {
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        assertTrue(reader.waitForCardInsert(WAIT_TIMEOUT, cardInfo));
+        assertEquals(CARD_ID & 0xffffff, cardInfo.cardId);
+        assertEquals((byte)0xe8, cardInfo.format);
+
+        SIProtocol proto = reader.getProtoObj();
+        for (int block=0; block<8; block++) {
+            proto.writeMsg((byte)0xef, new byte[]{(byte)block}, true);
+            byte[] reply = proto.readMsg(WAIT_TIMEOUT, (byte)0xef);
+            assertNotNull(reply);
+            assertEquals(128 + 6 + 3, reply.length);
+            assertEquals(block, reply[5]);
+            assertArrayEquals(Arrays.copyOfRange(card.data, block*128, block*128 + 128), Arrays.copyOfRange(reply, 6, 6 + 128));
+        }
+        reader.sendAck();
+    }
+
+    @Test
+    public void probe_highBaudRate() {
+        SIReader reader = new SIReader(station(), false);
+        probe(reader);
+        reader.close();
+    }
+
+    @Test
+    public void probe_lowBaudRate() {
+        SimulatedStation station = station();
+        station.setStationBaudRate(4800);
+        SIReader reader = new SIReader(station, false);
+        probe(reader);
+        reader.close();
+    }
+
+    @Test
+    public void switchToHighSpeed_fasterLink() {
+        SimulatedStation station = station();
+        station.setStationBaudRate(4800);
+        SIReader reader = new SIReader(station, false);
+        probe(reader);
+        long lowSpeed = reader.measureThroughput();
+        assertTrue(lowSpeed > 0);
+
+        assertTrue(reader.switchToHighSpeed());
+        assertEquals(38400, reader.getDeviceInfo().baudRate);
+        assertEquals(38400, station.getStationBaudRate());
+        // Measured by the switch, not again
+        assertTrue(reader.getProtoObj().getMetrics().getThroughput() > 2 * lowSpeed);
+        reader.close();
+    }
+
+    @Test
+    public void switchToHighSpeed_refused() {
+        SimulatedStation station = station();
+        station.setStationBaudRate(4800);
+        station.setBaudSwitch(false);
+        SIReader reader = new SIReader(station, false);
+        probe(reader);
+
+        assertFalse(reader.switchToHighSpeed());
+        assertEquals(4800, reader.getDeviceInfo().baudRate);
+        assertTrue(reader.measureThroughput() > 0);
+        reader.close();
+    }
+
+    @Test
+    public void probe_cachedProfile() {
+        SimulatedStation station = station();
+        station.setStationBaudRate(4800);
+        SIReader reader = new SIReader(station, false);
+        probe(reader);
+        SIReader.Info cached = reader.getDeviceInfo();
+        assertEquals(4800, cached.baudRate);
+        reader.close();
+
+        station = station();
+        station.setStationBaudRate(4800);
+        reader = new SIReader(station, false);
+        assertTrue(reader.probeDevice(cached));
+        // Set MS master and the serial query, in one transfer
+        assertEquals(2, station.getFramesFromHost());
+        assertEquals(1, station.getWritesFromHost());
+        assertEquals(0x4d, station.getMsMode());
+        assertEquals(SERIAL_NO, reader.getDeviceInfo().serialNo);
+        assertEquals(SIReader.DeviceType.Read, reader.getDeviceInfo().type);
+        assertTrue(reader.getDeviceInfo().extendedMode);
+        reader.close();
+    }
+
+    @Test
+    public void probe_staleProfile() {
+        SIReader.Info cached = new SIReader.Info();
+        cached.serialNo = SERIAL_NO + 1;
+        cached.baudRate = 38400;
+        cached.type = SIReader.DeviceType.Control;
+
+        SIReader reader = new SIReader(station(), false);
+        assertTrue(reader.probeDevice(cached));
+        assertEquals(SERIAL_NO, reader.getDeviceInfo().serialNo);
+        assertEquals(SIReader.DeviceType.Read, reader.getDeviceInfo().type);
+        reader.close();
+    }
+
+    @Test
+    public void readout_sync() throws InterruptedException {
+        SimulatedStation station = station();
+        SimulatedStation.Card card = card10();
+        SIReader reader = new SIReader(station, false);
+        probe(reader);
+
+        station.insertCard(card);
+        // The station counts the readout while the ACK is written
+        readBlocks(reader, card);
+        assertEquals(1, station.getReadoutCount());
+
+        // Timeout adapted to the round trips of the block reads
+        int timeout = reader.getProtoObj().replyTimeout((byte)0xef, WAIT_TIMEOUT);
+        assertTrue(timeout >= SIRttEstimator.DEFAULT_FLOOR && timeout < WAIT_TIMEOUT);
+        assertEquals(WAIT_TIMEOUT, reader.getProtoObj().replyTimeout((byte)0xe1, WAIT_TIMEOUT));
+        reader.close();
+    }
+
+    @Test
+    public void readout_async() throws InterruptedException {
+        SimulatedStation station = station();
+        SimulatedStation.Card card = card10();
+        SIReader reader = new SIReader(station, true);
+        probe(reader);
+
+        station.insertCard(card);
+        // The station counts the readout while the ACK is written
+        readBlocks(reader, card);
+        assertEquals(1, station.getReadoutCount());
+
+        SIMetrics metrics = reader.getProtoObj().getMetrics();
+        assertEquals(1, metrics.getHistogram(SIMetrics.Phase.InsertDetect).getCount());
+        assertTrue(metrics.getHistogram(SIMetrics.Phase.RoundTrip).getCount() >= 8);
+        assertEquals(station.getFramesFromHost(), metrics.getCount(SIMetrics.Counter.FramesOut));
+        assertEquals(station.getBytesToHost(), metrics.getCount(SIMetrics.Counter.BytesIn));
+        assertEquals(0, metrics.getCount(SIMetrics.Counter.Timeouts));
+        reader.close();
+    }
+
+    @Test
+    public void corruptReply_isDropped() {
+        SimulatedStation station = station();
+        SIReader reader = new SIReader(station, false);
+        probe(reader);
+
+        station.insertCard(card10());
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        assertTrue(reader.waitForCardInsert(WAIT_TIMEOUT, cardInfo));
+
+        station.setErrorRates(0, 0, 1);
+        SIProtocol proto = reader.getProtoObj();
+        proto.writeMsg((byte)0xef, new byte[]{0}, true);
+        assertNull(proto.readMsg(WAIT_TIMEOUT, (byte)0xef));
+        assertEquals(1, proto.getCrcErrorCount());
+        reader.close();
+    }
+
+    @Test
+    public void corruptReply_failsFastAsync() {
+        SimulatedStation station = station();
+        SIReader reader = new SIReader(station, true);
+        probe(reader);
+
+        station.insertCard(card10());
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        assertTrue(reader.waitForCardInsert(WAIT_TIMEOUT, cardInfo));
+
+        station.setErrorRates(0, 0, 1);
+        SIProtocol proto = reader.getProtoObj();
+        proto.writeMsg((byte)0xef, new byte[]{0}, true);
+        // Back before the timeout, not at it
+        long start = System.currentTimeMillis();
+        assertNull(proto.readMsg(WAIT_TIMEOUT, (byte)0xef));
+        assertTrue(System.currentTimeMillis() - start < WAIT_TIMEOUT);
+        assertTrue(proto.isCrcError());
+        assertEquals(0, proto.getMetrics().getCount(SIMetrics.Counter.Timeouts));
+
+        // A resend gets the block once the link is clean again
+        station.setErrorRates(0, 0, 0);
+        proto.writeMsg((byte)0xef, new byte[]{0}, true);
+        byte[] reply = proto.readMsg(WAIT_TIMEOUT, (byte)0xef);
+        assertNotNull(reply);
+        assertEquals(0, reply[5]);
+        reader.close();
+    }
+
+    @Test
+    public void punchRecords_streamedAsync() {
+        SimulatedStation station = station();
+        station.setDelay(0, false);
+        SIReader reader = new SIReader(station, true);
+        probe(reader);
+
+        final SIPunchStream stream = new SIPunchStream();
+        final CardParser parser = new CardParser(new GregorianCalendar(2020, 0, 4, 0, 0, 0));
+        reader.getProtoObj().setFrameListener((byte)0xd3, new SIProtocol.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                stream.offer(parser.parseTransmitRecord(SERIAL_NO, frame, length));
+            }
+        });
+
+        for (int i=0; i<500; i++) {
+            station.sendPunch(31 + (i % 10), CARD_ID + i, 3600 + i, i * 8);
+        }
+        // Card events still get through while punches stream in
+        station.insertCard(card10());
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        assertTrue(reader.waitForCardInsert(WAIT_TIMEOUT, cardInfo));
+        assertEquals(CARD_ID & 0xffffff, cardInfo.cardId);
+
+        List<SIPunch> punches = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+        while (punches.size() < 500 && System.currentTimeMillis() < deadline) {
+            stream.drainTo(punches, 100);
+        }
+        assertEquals(500, punches.size());
+        for (int i=0; i<punches.size(); i++) {
+            SIPunch punch = punches.get(i);
+            assertEquals(SERIAL_NO, punch.serialNo);
+            assertEquals(31 + (i % 10), punch.code);
+            assertEquals((CARD_ID + i) & 0xffffff, punch.cardId);
+            assertEquals((3600 + i) * 1000L + 500, punch.time);
+            assertEquals(i * 8, punch.memoryAddress);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void cancel_wakesUpWaitingReader() throws InterruptedException {
+        final SIReader reader = new SIReader(station(), true);
+        probe(reader);
+
+        // Cancel once this thread is blocked waiting for a card
+        final Thread waiter = Thread.currentThread();
+        Thread canceler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (waiter.getState() != Thread.State.TIMED_WAITING) {
+                    Thread.yield();
+                }
+                reader.cancel();
+            }
+        });
+        canceler.start();
+
+        long start = System.currentTimeMillis();
+        assertFalse(reader.waitForCardInsert(WAIT_TIMEOUT, new SIReader.SiCardInfo()));
+        assertTrue(System.currentTimeMillis() - start < WAIT_TIMEOUT);
+        assertNull(reader.getProtoObj().readMsg(WAIT_TIMEOUT));
+        canceler.join();
+        reader.close();
+    }
+
+    @Test
+    public void requests_matchedByBlockNumber() throws InterruptedException {
+        SimulatedStation station = station();
+        SimulatedStation.Card card = card10();
+        SIReader reader = new SIReader(station, true);
+        probe(reader);
+
+        station.insertCard(card);
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        assertTrue(reader.waitForCardInsert(WAIT_TIMEOUT, cardInfo));
+
+        SIProtocol proto = reader.getProtoObj();
+        final List<SIRequest> completed = new ArrayList<>();
+        SIRequest.Callback callback = new SIRequest.Callback() {
+            @Override
+            public void onComplete(SIRequest request) {
+                synchronized (completed) {
+                    completed.add(request);
+                }
+            }
+        };
+        SIRequest[] requests = new SIRequest[8];
+        for (int block=0; block<8; block++) {
+            requests[block] = proto.request((byte)0xef, new byte[]{(byte)block}, block, 128 + 6 + 3, WAIT_TIMEOUT, callback);
+        }
+
+        // Waited for in reverse, each still gets its own block
+        for (int block=7; block>=0; block--) {
+            byte[] reply = requests[block].get();
+            assertNotNull(reply);
+            assertEquals(SIRequest.Status.Done, requests[block].getStatus());
+            assertEquals(block, reply[5]);
+            assertArrayEquals(Arrays.copyOfRange(card.data, block*128, block*128 + 128), Arrays.copyOfRange(reply, 6, 6 + 128));
+        }
+        assertEquals(8, completed.size());
+        assertTrue(proto.getMetrics().getHistogram(SIMetrics.Phase.RoundTrip).getCount() >= 8);
+        reader.close();
+    }
+
+    @Test
+    public void request_failures() throws InterruptedException {
+        SimulatedStation station = station();
+        SIReader reader = new SIReader(station, true);
+        probe(reader);
+        station.insertCard(card10());
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        assertTrue(reader.waitForCardInsert(WAIT_TIMEOUT, cardInfo));
+        SIProtocol proto = reader.getProtoObj();
+        proto.setTimeoutBounds(TIMEOUT_FLOOR, TIMEOUT_CEILING);
+
+        SIRequest request = proto.request((byte)0xef, new byte[]{0}, 0, 100, WAIT_TIMEOUT, null);
+        assertNull(request.get());
+        assertEquals(SIRequest.Status.BadLength, request.getStatus());
+
+        station.setErrorRates(0, 1, 0);
+        request = proto.request((byte)0xef, new byte[]{0}, 128 + 6 + 3, WAIT_TIMEOUT);
+        assertNull(request.get());
+        assertEquals(SIRequest.Status.Nak, request.getStatus());
+
+        station.setErrorRates(0, 0, 1);
+        request = proto.request((byte)0xef, new byte[]{0}, 128 + 6 + 3, WAIT_TIMEOUT);
+        assertNull(request.get());
+        assertEquals(SIRequest.Status.CrcError, request.getStatus());
+
+        // Times out on its own timer, long before a wait would give up
+        station.setErrorRates(1, 0, 0);
+        request = proto.request((byte)0xef, new byte[]{0}, 128 + 6 + 3, TIMEOUT_CEILING);
+        long start = System.currentTimeMillis();
+        assertNull(request.get());
+        assertTrue(System.currentTimeMillis() - start < WAIT_TIMEOUT);
+        assertEquals(SIRequest.Status.Timeout, request.getStatus());
+        assertEquals(1, proto.getMetrics().getCount(SIMetrics.Counter.Timeouts));
+
+        // Waiting requests are canceled when the reader is
+        request = proto.request((byte)0xef, new byte[]{0}, 128 + 6 + 3, 5000);
+        reader.cancel();
+        assertNull(request.get());
+        assertEquals(SIRequest.Status.Canceled, request.getStatus());
+        reader.close();
+    }
+
+    @Test
+    public void batch_oneWriteForPipelinedRequests() throws InterruptedException {
+        SimulatedStation station = station();
+        SimulatedStation.Card card = card10();
+        SIReader reader = new SIReader(station, true);
+        probe(reader);
+
+        station.insertCard(card);
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        assertTrue(reader.waitForCardInsert(WAIT_TIMEOUT, cardInfo));
+
+        SIProtocol proto = reader.getProtoObj();
+        long writes = station.getWritesFromHost();
+        long framesOut = proto.getMetrics().getCount(SIMetrics.Counter.FramesOut);
+        SIRequest[] requests = new SIRequest[8];
+        proto.beginBatch();
+        for (int block=0; block<8; block++) {
+            requests[block] = proto.request((byte)0xef, new byte[]{(byte)block}, block, 128 + 6 + 3, WAIT_TIMEOUT, null);
+        }
+        assertEquals(writes, station.getWritesFromHost());
+        assertEquals(0, proto.endBatch());
+        assertEquals(writes + 1, station.getWritesFromHost());
+        assertEquals(framesOut + 8, proto.getMetrics().getCount(SIMetrics.Counter.FramesOut));
+
+        for (int block=0; block<8; block++) {
+            byte[] reply = requests[block].get();
+            assertNotNull(reply);
+            assertArrayEquals(Arrays.copyOfRange(card.data, block*128, block*128 + 128), Arrays.copyOfRange(reply, 6, 6 + 128));
+        }
+        assertEquals(0, proto.writeAck());
+        reader.close();
+    }
+
+    @Test
+    public void batch_otherThreadsWriteThrough() throws InterruptedException {
+        SimulatedStation station = station();
+        SIReader reader = new SIReader(station, true);
+        probe(reader);
+
+        final SIProtocol proto = reader.getProtoObj();
+        final byte[] query = new byte[]{0x00, 0x04};
+        long writes = station.getWritesFromHost();
+        long framesOut = proto.getMetrics().getCount(SIMetrics.Counter.FramesOut);
+        proto.beginBatch();
+        assertEquals(0, proto.writeMsg((byte)0x83, query));
+        assertEquals(0, proto.writeMsg((byte)0x83, query));
+        assertEquals(writes, station.getWritesFromHost());
+
+        // Another thread is not held back, the frames before its own go with it
+        final int[] ret = new int[]{-2};
+        final boolean[] refused = new boolean[]{false};
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ret[0] = proto.writeMsg((byte)0x83, query);
+                try {
+                    proto.beginBatch();
+                }
+                catch (IllegalStateException e) {
+                    refused[0] = true;
+                }
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals(0, ret[0]);
+        assertTrue(refused[0]);
+        assertEquals(writes + 1, station.getWritesFromHost());
+        assertEquals(framesOut + 3, proto.getMetrics().getCount(SIMetrics.Counter.FramesOut));
+
+        // Still batching on this thread
+        assertEquals(0, proto.writeMsg((byte)0x83, query));
+        assertEquals(writes + 1, station.getWritesFromHost());
+        assertEquals(0, proto.endBatch());
+        assertEquals(writes + 2, station.getWritesFromHost());
+        assertEquals(framesOut + 4, proto.getMetrics().getCount(SIMetrics.Counter.FramesOut));
+        reader.close();
+    }
+
+    @Test
+    public void pipelinedRequests_noSpuriousTimeouts() throws InterruptedException {
+        SimulatedStation station = station();
+        SimulatedStation.Card card = card10();
+        SIReader reader = new SIReader(station, true);
+        probe(reader);
+        station.insertCard(card);
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        assertTrue(reader.waitForCardInsert(WAIT_TIMEOUT, cardInfo));
+        SIProtocol proto = reader.getProtoObj();
+        proto.setTimeoutBounds(TIMEOUT_FLOOR, TIMEOUT_CEILING);
+
+        // Round trip times from stop-and-wait requests
+        for (int block=0; block<4; block++) {
+            assertNotNull(proto.request((byte)0xef, new byte[]{(byte)block}, block, 128 + 6 + 3, WAIT_TIMEOUT, null).get());
+        }
+        int timeout = proto.replyTimeout((byte)0xef, WAIT_TIMEOUT);
+        assertTrue(timeout <= TIMEOUT_CEILING);
+
+        // The last replies come after several timeouts, eight replies take about 290 ms on the wire
+        SIRequest[] requests = new SIRequest[8];
+        long start = System.currentTimeMillis();
+        proto.beginBatch();
+        for (int block=0; block<8; block++) {
+            requests[block] = proto.request((byte)0xef, new byte[]{(byte)block}, block, 128 + 6 + 3, WAIT_TIMEOUT, null);
+        }
+        proto.endBatch();
+        for (int block=0; block<8; block++) {
+            assertNotNull(requests[block].get());
+            assertEquals(SIRequest.Status.Done, requests[block].getStatus());
+        }
+        assertTrue(System.currentTimeMillis() - start > timeout);
+        assertEquals(0, proto.getMetrics().getCount(SIMetrics.Counter.Timeouts));
+        reader.close();
+    }
+
+    private static SIProtocol insertCard10(SimulatedStation station, SIReader reader, SimulatedStation.Card card)
+    {
+        probe(reader);
+        station.insertCard(card);
+        assertTrue(reader.waitForCardInsert(WAIT_TIMEOUT, new SIReader.SiCardInfo()));
+        return reader.getProtoObj();
+    }
+
+    private static byte[] allBlocks()
+    {
+        return new byte[]{0, 1, 2, 3, 4, 5, 6, 7};
+    }
+
+    @Test
+    public void pipelinedBlocks_repliesReversed() {
+        SimulatedStation station = station();
+        SimulatedStation.Card card = card10();
+        SIReader reader = new SIReader(station, true);
+        SIProtocol proto = insertCard10(station, reader, card);
+        station.setReverseReplies(true);
+
+        final List<Integer> order = new ArrayList<>();
+        byte[] dest = new byte[8 * 128];
+        boolean[] received = new boolean[8];
+        assertTrue(new SIBlockReader(proto, 4).read((byte)0xef, allBlocks(), dest, 0, received, new SIBlockReader.Listener() {
+            @Override
+            public void onBlock(int index) {
+                order.add(index);
+            }
+        }));
+        assertArrayEquals(card.data, dest);
+        assertEquals(8, order.size());
+        assertEquals(0, proto.getMetrics().getCount(SIMetrics.Counter.Retries));
+        assertEquals(0, proto.getMetrics().getCount(SIMetrics.Counter.Timeouts));
+        reader.close();
+    }
+
+    @Test
+    public void pipelinedBlocks_missingReplies() {
+        SimulatedStation station = station();
+        SimulatedStation.Card card = card10();
+        SIReader reader = new SIReader(station, true);
+        SIProtocol proto = insertCard10(station, reader, card);
+        proto.setTimeoutBounds(TIMEOUT_FLOOR, TIMEOUT_CEILING);
+        station.setErrorRates(0.15, 0.1, 0);
+
+        byte[] dest = new byte[8 * 128];
+        boolean[] received = new boolean[8];
+        long frames = station.getFramesFromHost();
+        assertTrue(new SIBlockReader(proto, 4).read((byte)0xef, allBlocks(), dest, 0, received, null));
+        assertArrayEquals(card.data, dest);
+        // Every failed block was asked for again
+        assertTrue(station.getFramesFromHost() - frames > 8);
+        reader.close();
+    }
+
+    @Test
+    public void pipelinedBlocks_keepsPartialOnFailure() {
+        SimulatedStation station = station();
+        SimulatedStation.Card card = card10();
+        SIReader reader = new SIReader(station, true);
+        SIProtocol proto = insertCard10(station, reader, card);
+        proto.setTimeoutBounds(10, 50);
+
+        byte[] dest = new byte[8 * 128];
+        boolean[] received = new boolean[8];
+        received[2] = true;
+        received[3] = true;
+        station.setErrorRates(1, 0, 0);
+        assertFalse(new SIBlockReader(proto, 4).read((byte)0xef, allBlocks(), dest, 0, received, null));
+        assertEquals(SIBlockReader.BLOCK_RETRIES, proto.getMetrics().getCount(SIMetrics.Counter.Retries));
+
+        // Only the missing blocks are read once the card answers again
+        station.setErrorRates(0, 0, 0);
+        long frames = station.getFramesFromHost();
+        assertTrue(new SIBlockReader(proto, 4).read((byte)0xef, allBlocks(), dest, 0, received, null));
+        assertEquals(6, station.getFramesFromHost() - frames);
+        for (int block=0; block<8; block++) {
+            if (block != 2 && block != 3) {
+                assertArrayEquals(Arrays.copyOfRange(card.data, block*128, block*128 + 128), Arrays.copyOfRange(dest, block*128, block*128 + 128));
+            }
+        }
+        reader.close();
+    }
+
+    @Test
+    public void corruptInsert_duringBackup() throws IOException {
+        SimulatedStation station = station();
+        long end = SIReader.BACKUP_START + 16 * SIBackupDownload.CHUNK_SIZE;
+        station.setBackupMemory(new byte[0x10000], end);
+        SIReader reader = new SIReader(station, true);
+        probe(reader);
+        SIProtocol proto = reader.getProtoObj();
+
+        File file = File.createTempFile("backup", ".dat");
+        file.deleteOnExit();
+        SIBackupDownload download = new SIBackupDownload(proto, true, SERIAL_NO, file);
+        download.setPipelineDepth(1);
+        download.begin(SIReader.BACKUP_START, end, null);
+        assertTrue(download.step());
+
+        // Bulk steps alternate with checks for a card, as in the reader loop
+        station.insertCard(card10(), true);
+        SIReader.SiCardInfo cardInfo = new SIReader.SiCardInfo();
+        while (proto.getCrcErrorCount() == 0) {
+            assertFalse(reader.pollCardInsert(cardInfo));
+            assertTrue(download.step());
+        }
+        // The reply to this step comes after the corrupt frame, which is queued by now
+        assertTrue(download.step());
+        assertFalse(reader.pollCardInsert(cardInfo));
+
+        station.insertCard(card10());
+        while (!reader.pollCardInsert(cardInfo)) {
+            assertTrue(download.step());
+        }
+        assertEquals(CARD_ID, cardInfo.cardId);
+
+        while (download.step()) {
+            // Rest of the backup
+        }
+        download.close();
+        assertTrue(download.isComplete());
+        reader.close();
+    }
+}
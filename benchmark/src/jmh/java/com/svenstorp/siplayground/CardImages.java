@@ -0,0 +1,124 @@
+package com.svenstorp.siplayground;
+
+import java.util.Arrays;
+
+/**
+ * Builds card memory images for the supported card series, laid out as
+ * CardReader hands them to CardParser.
+ */
+final class CardImages {
+    static final int SERIES_SI9 = 1;
+    static final int SERIES_SI8 = 2;
+    static final int SERIES_PCARD = 4;
+    static final int SERIES_SI10 = 15;
+
+    private CardImages()
+    {
+    }
+
+    /**
+     * SI-Card 5, the full 0xb1 reply frame.
+     */
+    static byte[] card5(long cardId, int punches)
+    {
+        byte[] frame = new byte[136];
+        int offset = 5;
+        frame[0] = 0x02;
+        frame[1] = (byte)0xb1;
+        frame[2] = (byte)130;
+        frame[offset+4] = (byte)((cardId % 100000) >> 8);
+        frame[offset+5] = (byte)(cardId % 100000);
+        frame[offset+6] = (byte)(cardId / 100000);
+        putShort(frame, offset+19, 36000);
+        putShort(frame, offset+21, 39000);
+        putShort(frame, offset+25, 35000);
+        frame[offset+23] = (byte)(punches + 1);
+        for (int i=0; i<punches && i<30; i++) {
+            int baseoffset = offset + 32 + (i/5)*16 + 1 + 3*(i%5);
+            frame[baseoffset] = (byte)(31 + i);
+            putShort(frame, baseoffset+1, 36000 + 60*i);
+        }
+        for (int i=30; i<punches; i++) {
+            frame[offset + 32 + (i-30)*16] = (byte)(31 + i);
+        }
+        frame[135] = 0x03;
+        return frame;
+    }
+
+    /**
+     * SI-Card 6, blocks 0, 6, 7, 2, 3, 4, 5 in read order.
+     */
+    static byte[] card6(long cardId, int punches)
+    {
+        byte[] data = new byte[7 * 128];
+        Arrays.fill(data, 128, data.length, (byte)0xee);
+        data[10] = (byte)(cardId >> 24);
+        data[11] = (byte)(cardId >> 16);
+        data[12] = (byte)(cardId >> 8);
+        data[13] = (byte)cardId;
+        data[18] = (byte)punches;
+        putPunch(data, 20, 0, 39000);
+        putPunch(data, 24, 0, 36000);
+        putPunch(data, 28, 0, 35000);
+        for (int i=0; i<punches; i++) {
+            putPunch(data, 128 + 4*i, 31 + i, 36000 + 60*i);
+        }
+        return data;
+    }
+
+    /**
+     * SI-Card 8, 9, 10, 11, SIAC and pCard, block 0 followed by the punch blocks.
+     */
+    static byte[] card9(int series, long cardId, int punches)
+    {
+        int punchOffset;
+        int blocks;
+        switch (series) {
+            case SERIES_SI9:
+                punchOffset = 14*4;
+                blocks = 2;
+                break;
+            case SERIES_SI8:
+                punchOffset = 34*4;
+                blocks = 2;
+                break;
+            case SERIES_PCARD:
+                punchOffset = 44*4;
+                blocks = 2;
+                break;
+            default:
+                punchOffset = 128;
+                blocks = 1 + (punches + 31) / 32;
+                break;
+        }
+
+        byte[] data = new byte[blocks * 128];
+        Arrays.fill(data, punchOffset, data.length, (byte)0xee);
+        putPunch(data, 8, 0, 35000);
+        putPunch(data, 12, 0, 36000);
+        putPunch(data, 16, 0, 39000);
+        data[22] = (byte)punches;
+        data[24] = (byte)series;
+        data[25] = (byte)(cardId >> 16);
+        data[26] = (byte)(cardId >> 8);
+        data[27] = (byte)cardId;
+        for (int i=0; i<punches; i++) {
+            putPunch(data, punchOffset + 4*i, 31 + i, 36000 + 60*i);
+        }
+        return data;
+    }
+
+    private static void putPunch(byte[] data, int offset, int code, int seconds)
+    {
+        // Day of week 1, am/pm bit and the high bits of the code in the first byte
+        data[offset] = (byte)(((code >> 8) << 6) | (1 << 1) | ((seconds >= 43200) ? 1 : 0));
+        data[offset+1] = (byte)code;
+        putShort(data, offset+2, seconds % 43200);
+    }
+
+    private static void putShort(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte)(value >> 8);
+        data[offset+1] = (byte)value;
+    }
+}
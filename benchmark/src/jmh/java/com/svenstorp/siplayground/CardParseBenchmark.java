@@ -0,0 +1,70 @@
+package com.svenstorp.siplayground;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Calendar;
+
+/**
+ * Parsing of full card images for every card series, with the max number of punches.
+ */
+@State(Scope.Thread)
+public class CardParseBenchmark {
+    @Param({"SI5", "SI6", "SI8", "SI9", "SI10", "pCard"})
+    public String series;
+
+    private byte[] data;
+    private CardParser parser;
+
+    @Setup
+    public void setup()
+    {
+        Calendar zeroTime = Calendar.getInstance();
+        zeroTime.set(2020, Calendar.APRIL, 6, 10, 0, 0);
+        parser = new CardParser(zeroTime);
+
+        switch (series) {
+            case "SI5":
+                data = CardImages.card5(123456, 36);
+                break;
+            case "SI6":
+                data = CardImages.card6(812345, 64);
+                break;
+            case "SI8":
+                data = CardImages.card9(CardImages.SERIES_SI8, 2123456, 30);
+                break;
+            case "SI9":
+                data = CardImages.card9(CardImages.SERIES_SI9, 1123456, 50);
+                break;
+            case "SI10":
+                data = CardImages.card9(CardImages.SERIES_SI10, 8123456, 128);
+                break;
+            case "pCard":
+                data = CardImages.card9(CardImages.SERIES_PCARD, 4123456, 20);
+                break;
+            default:
+                throw new IllegalArgumentException(series);
+        }
+    }
+
+    @Benchmark
+    public CardEntry parse()
+    {
+        CardEntry entry = new CardEntry();
+        switch (series) {
+            case "SI5":
+                parser.card5EntryParse(data, entry);
+                break;
+            case "SI6":
+                parser.card6EntryParse(data, entry);
+                break;
+            default:
+                parser.card9EntryParse(data, entry);
+                break;
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,41 @@
+package com.svenstorp.siplayground;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+@State(Scope.Thread)
+public class CrcBenchmark {
+    // Insert event, 0x83 system value reply and a card block reply
+    @Param({"6", "120", "133"})
+    public int length;
+
+    private byte[] data;
+    private SICRC crc;
+
+    @Setup
+    public void setup()
+    {
+        data = new byte[length];
+        new Random(length).nextBytes(data);
+        crc = new SICRC();
+    }
+
+    @Benchmark
+    public int calc()
+    {
+        return SICRC.calc(data, 0, length);
+    }
+
+    @Benchmark
+    public int update()
+    {
+        crc.reset();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,134 @@
+package com.svenstorp.siplayground;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Encoding of requests and decoding of card block replies.
+ */
+@State(Scope.Thread)
+public class FrameBenchmark {
+    private static final int FRAMES = 8;
+
+    /**
+     * Swallows writes and repeats a fixed byte stream on every read.
+     */
+    private static class LoopbackTransport implements SITransport {
+        private final byte[] stream;
+
+        LoopbackTransport(byte[] stream)
+        {
+            this.stream = stream;
+        }
+
+        @Override
+        public boolean open(boolean async)
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public void setBaudRate(int baudRate)
+        {
+        }
+
+        @Override
+        public int write(byte[] data, int length, int timeout)
+        {
+            return length;
+        }
+
+        @Override
+        public int read(byte[] buffer, int timeout)
+        {
+            System.arraycopy(stream, 0, buffer, 0, stream.length);
+            return stream.length;
+        }
+
+        @Override
+        public void startReceive(ReceiveCallback callback)
+        {
+        }
+    }
+
+    private final byte[] blockRequest = new byte[]{0x00};
+    private byte[] stream;
+    private SIFrameDecoder decoder;
+    private SIProtocol proto;
+
+    static byte[] blockReply(int block)
+    {
+        byte[] frame = new byte[128 + 9];
+        frame[0] = 0x02;
+        frame[1] = (byte)0xef;
+        frame[2] = (byte)131;
+        frame[5] = (byte)block;
+        Arrays.fill(frame, 6, 6 + 128, (byte)block);
+        int crc = SICRC.calc(frame, 1, 133);
+        frame[134] = (byte)(crc >> 8);
+        frame[135] = (byte)crc;
+        frame[136] = 0x03;
+        return frame;
+    }
+
+    @Setup
+    public void setup()
+    {
+        stream = new byte[FRAMES * (128 + 9)];
+        for (int i=0; i<FRAMES; i++) {
+            System.arraycopy(blockReply(i), 0, stream, i * (128 + 9), 128 + 9);
+        }
+        decoder = new SIFrameDecoder();
+        proto = new SIProtocol(new LoopbackTransport(stream), false);
+    }
+
+    @Benchmark
+    public int encodeBlockRequest()
+    {
+        return proto.writeMsg((byte)0xef, blockRequest, true);
+    }
+
+    @Benchmark
+    public int encodeAck()
+    {
+        return proto.writeAck();
+    }
+
+    @Benchmark
+    public int encodePipelinedRequests()
+    {
+        proto.beginBatch();
+        for (int i=0; i<FRAMES; i++) {
+            blockRequest[0] = (byte)i;
+            proto.writeMsg((byte)0xef, blockRequest, true);
+        }
+        return proto.endBatch();
+    }
+
+    @Benchmark
+    public void decodeBlockReplies(Blackhole bh)
+    {
+        decoder.feed(stream, 0, stream.length);
+        while (decoder.poll()) {
+            bh.consume(decoder.isCrcValid());
+        }
+    }
+
+    @Benchmark
+    public void readBlockReplies(Blackhole bh)
+    {
+        for (int i=0; i<FRAMES; i++) {
+            bh.consume(proto.readMsg(1000, (byte)0xef));
+        }
+    }
+}